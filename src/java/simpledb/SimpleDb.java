@@ -2,11 +2,17 @@ package simpledb;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.*;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
 
 public class SimpleDb {
     public static void main (String[] args)
@@ -22,33 +28,10 @@ public class SimpleDb {
                     File sourceTxtFile = new File(args[1]);
                     File targetDatFile = new File(args[1].replaceAll(".txt", ".dat"));
                     int numOfAttributes = Integer.parseInt(args[2]);
-                    Type[] ts = new Type[numOfAttributes];
-                    char fieldSeparator = ',';
-
-                    if (args.length == 3)
-                        for (int i = 0; i < numOfAttributes; i++)
-                            ts[i] = Type.INT_TYPE;
-                    else {
-                        String typeString = args[3];
-                        String[] typeStringAr = typeString.split(",");
-                        if (typeStringAr.length != numOfAttributes) {
-                            System.err.println("The number of types does not agree with the number of columns");
-                            return;
-                        }
-                        int index = 0;
-                        for (String s : typeStringAr) {
-                            if (s.equalsIgnoreCase("int"))
-                                ts[index++] = Type.INT_TYPE;
-                            else if (s.equalsIgnoreCase("string"))
-                                ts[index++] = Type.STRING_TYPE;
-                            else {
-                                System.err.println("Unknown type " + s);
-                                return;
-                            }
-                        }
-                        if (args.length == 5)
-                            fieldSeparator = args[4].charAt(0);
-                    }
+                    Type[] ts = parseTypes(args, 3, numOfAttributes);
+                    if (ts == null)
+                        return;
+                    char fieldSeparator = args.length == 5 ? args[4].charAt(0) : ',';
 
                     HeapFileEncoder.convert(sourceTxtFile, targetDatFile,
                             BufferPool.getPageSize(), numOfAttributes, ts, fieldSeparator);
@@ -57,6 +40,38 @@ public class SimpleDb {
                     throw new RuntimeException(e);
                 }
                 break;
+            case "load":
+                // load table.dat source.txt numColumns [types] [separator]
+                try {
+                    if (args.length < 4 || args.length > 6) {
+                        System.err.println("Unexpected number of arguments to load ");
+                        return;
+                    }
+                    File targetDatFile = new File(args[1]);
+                    File sourceTxtFile = new File(args[2]);
+                    int numOfAttributes = Integer.parseInt(args[3]);
+                    Type[] ts = parseTypes(args, 4, numOfAttributes);
+                    if (ts == null)
+                        return;
+                    char fieldSeparator = args.length == 6 ? args[5].charAt(0) : ',';
+
+                    HeapFile hf = Utility.openHeapFile(numOfAttributes, null, targetDatFile, new TupleDesc(ts));
+                    Transaction t = new Transaction();
+                    t.start();
+                    int count;
+                    try (BufferedReader br = new BufferedReader(new FileReader(sourceTxtFile))) {
+                        count = hf.bulkLoad(t.getId(), readTuples(br, hf.getTupleDesc(), fieldSeparator));
+                    } catch (IOException | DbException | TransactionAbortedException | RuntimeException e) {
+                        t.abort();
+                        throw e;
+                    }
+                    t.commit();
+                    TableStats.updateStatistics(hf.getId());
+                    System.out.println("Loaded " + count + " tuples into " + targetDatFile);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                break;
             case "print":
                 File tableFile = new File(args[1]);
                 int columns = Integer.parseInt(args[2]);
@@ -101,4 +116,80 @@ public class SimpleDb {
         }
     }
 
+    /**
+     * Parse the comma separated column types in args[index], if there is
+     * such an argument; all columns are ints otherwise.
+     *
+     * @return the types, or null after printing an error
+     */
+    private static Type[] parseTypes(String[] args, int index, int numOfAttributes) {
+        Type[] ts = new Type[numOfAttributes];
+        if (args.length <= index) {
+            Arrays.fill(ts, Type.INT_TYPE);
+            return ts;
+        }
+        String[] typeStringAr = args[index].split(",");
+        if (typeStringAr.length != numOfAttributes) {
+            System.err.println("The number of types does not agree with the number of columns");
+            return null;
+        }
+        int i = 0;
+        for (String s : typeStringAr) {
+            if (s.equalsIgnoreCase("int"))
+                ts[i++] = Type.INT_TYPE;
+            else if (s.equalsIgnoreCase("string"))
+                ts[i++] = Type.STRING_TYPE;
+            else {
+                System.err.println("Unknown type " + s);
+                return null;
+            }
+        }
+        return ts;
+    }
+
+    /**
+     * Read one tuple per non-empty line of br, the same text format that
+     * convert reads. Lines are only read as the tuples are asked for.
+     */
+    private static Iterator<Tuple> readTuples(BufferedReader br, TupleDesc td, char fieldSeparator) {
+        return new Iterator<Tuple>() {
+            private String line = nextLine();
+
+            private String nextLine() {
+                try {
+                    String l;
+                    do {
+                        l = br.readLine();
+                    } while (l != null && l.trim().isEmpty());
+                    return l;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return line != null;
+            }
+
+            @Override
+            public Tuple next() {
+                if (line == null) {
+                    throw new NoSuchElementException();
+                }
+                String[] values = line.split(Pattern.quote(String.valueOf(fieldSeparator)), -1);
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++) {
+                    String v = i < values.length ? values[i].trim() : "";
+                    if (td.getFieldType(i) == Type.INT_TYPE)
+                        t.setField(i, new IntField(Integer.parseInt(v)));
+                    else
+                        t.setField(i, new StringField(v, Type.STRING_LEN));
+                }
+                line = nextLine();
+                return t;
+            }
+        };
+    }
+
 }
@@ -1,7 +1,10 @@
 package simpledb.common;
 
+import simpledb.storage.CompressedFile;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.PaxFile;
+import simpledb.storage.SlottedFile;
 import simpledb.storage.TupleDesc;
 
 import java.io.BufferedReader;
@@ -69,8 +72,11 @@ public class Catalog {
      * @param pkeyField the name of the primary key field
      */
     public void addTable(DbFile file, String name, String pkeyField) {
-        tables.put(file.getId(), new Table(file, name, pkeyField));
+        Table old = tables.put(file.getId(), new Table(file, name, pkeyField));
         nameToId.put(name, file.getId());
+        if (old != null && old.file != file) {
+            closeFile(old.file);
+        }
 
         // some code goes here
     }
@@ -154,16 +160,40 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        close();
         tables.clear();
         nameToId.clear();
     }
+
+    /**
+     * Close the files of all tables. The tables stay in the catalog, and
+     * their files are opened again when next used.
+     */
+    public void close() {
+        for (Table table : tables.values()) {
+            closeFile(table.file);
+        }
+    }
+
+    private void closeFile(DbFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A table is stored in a HeapFile, unless its line ends in a storage
+     * keyword after the closing parenthesis: <code>slotted</code> stores it
+     * in a SlottedFile with variable-length records, <code>compressed</code>
+     * in an append-only CompressedFile, <code>pax</code> in a PaxFile that
+     * stores each column of a page together.
      * @param catalogFile
      * example:
      *      student (sid int, name string, age int, dept string, pk(sid))
-     *      course (cid int, name string, credit int, dept string, pk(cid))
+     *      course (cid int, name string, credit int, dept string, pk(cid)) slotted
      */
     public void loadSchema(String catalogFile) {
         String line = "";
@@ -203,7 +233,22 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String storage = line.substring(line.lastIndexOf(")") + 1).trim();
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf;
+                if (storage.isEmpty())
+                    tabHf = new HeapFile(tabFile, t);
+                else if (storage.equalsIgnoreCase("slotted"))
+                    tabHf = new SlottedFile(tabFile, t);
+                else if (storage.equalsIgnoreCase("compressed"))
+                    tabHf = new CompressedFile(tabFile, t);
+                else if (storage.equalsIgnoreCase("pax"))
+                    tabHf = new PaxFile(tabFile, t);
+                else {
+                    System.out.println("Unknown storage " + storage);
+                    System.exit(0);
+                    return;
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -2,6 +2,8 @@ package simpledb.common;
 
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
+import simpledb.storage.evict.EvictPolicy;
+import simpledb.storage.lock.DeadlockPolicy;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
@@ -58,11 +60,38 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, DeadlockPolicy.DETECTION);
+    }
+
+    /**
+     * Method used for testing and benchmarking -- create a new instance of
+     * the buffer pool that uses the given deadlock policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, DeadlockPolicy deadlockPolicy) {
+        return resetBufferPool(pages, deadlockPolicy, false);
+    }
+
+    /**
+     * Method used for testing and benchmarking -- create a new instance of
+     * the buffer pool that uses the given deadlock policy, and off-heap
+     * frames if asked to, and return it
+     */
+    public static BufferPool resetBufferPool(int pages, DeadlockPolicy deadlockPolicy, boolean offHeapFrames) {
+        return resetBufferPool(pages, deadlockPolicy, offHeapFrames, EvictPolicy.CLOCK);
+    }
+
+    /**
+     * Method used for testing and benchmarking -- create a new instance of
+     * the buffer pool that uses the given deadlock policy, off-heap frames
+     * if asked to, and the given eviction policy, and return it
+     */
+    public static BufferPool resetBufferPool(int pages, DeadlockPolicy deadlockPolicy, boolean offHeapFrames,
+                                             EvictPolicy evictPolicy) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, deadlockPolicy, offHeapFrames, evictPolicy));
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -72,7 +101,11 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        // 旧catalog里的表不再使用，关掉它们的文件
+        Database old = _instance.getAndSet(new Database());
+        old._catalog.close();
+        // 旧日志里还没写出去的记录就丢掉，和崩溃一样
+        old._logfile.abandon();
     }
 
 }
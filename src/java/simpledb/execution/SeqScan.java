@@ -16,6 +16,9 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * Pages are fetched with a use-once hint, so scanning a large table does not
+ * push the rest of the working set out of the BufferPool.
  */
 public class SeqScan implements OpIterator {
 
@@ -26,6 +29,8 @@ public class SeqScan implements OpIterator {
     private String tableAlias;
     private DbFile dbFile;
     private DbFileIterator dbFileIterator;
+    // 需要读出的列，null表示全部
+    private int[] fields;
 
 
     /**
@@ -45,12 +50,27 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a sequential scan over the specified table that only needs the
+     * given fields. Tables that store their columns separately, like a
+     * {@link simpledb.storage.PaxFile}, then leave the other fields of the
+     * returned tuples null; the TupleDesc still has every field.
+     *
+     * @param fields
+     *            the indexes of the fields the plan above this scan uses, or
+     *            null for all fields
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] fields) {
         this.tid = tid;
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.fields = fields;
 
         dbFile = Database.getCatalog().getDatabaseFile(tableid);
-        dbFileIterator = dbFile.iterator(tid);
+        dbFileIterator = dbFile.iterator(tid, true, fields);
         // some code goes here
     }
 
@@ -87,6 +107,8 @@ public class SeqScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        // 列号是原来那张表的
+        this.fields = null;
 
         dbFile = Database.getCatalog().getDatabaseFile(tableid);
 
@@ -98,7 +120,7 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        dbFileIterator = dbFile.iterator(tid);
+        dbFileIterator = dbFile.iterator(tid, true, fields);
         dbFileIterator.open();
     }
 
@@ -32,6 +32,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final SharedFileChannel channel;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -46,6 +47,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.channel = new SharedFileChannel(f);
 	}
 
 	/**
@@ -87,49 +89,60 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		try {
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
+				int retval = channel.read(pageBuf, 0);
+				if (retval == 0) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				if (retval < BTreeRootPtrPage.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read "
+							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return createPage(id, pageBuf);
+			} else {
+				byte[] pageBuf = new byte[BufferPool.getPageSize()];
+				int retval = channel.read(pageBuf, pageOffset(id.getPageNumber()));
+				if (retval == 0) {
+					throw new IllegalArgumentException("Read past end of table");
+				}
+				if (retval < BufferPool.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read "
+							+ BufferPool.getPageSize() + " bytes from BTreeFile");
+				}
+				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+				return createPage(id, pageBuf);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Make the page of the category in pid from its bytes
+	 */
+	public Page createPage(PageId pid, byte[] data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		switch (id.pgcateg()) {
+		case BTreePageId.ROOT_PTR:
+			return new BTreeRootPtrPage(id, data);
+		case BTreePageId.INTERNAL:
+			return new BTreeInternalPage(id, data, keyField);
+		case BTreePageId.LEAF:
+			return new BTreeLeafPage(id, data, keyField);
+		default: // BTreePageId.HEADER
+			return new BTreeHeaderPage(id, data);
+		}
+	}
+
+	/**
+	 * B+ tree pages are identified by BTreePageIds
+	 */
+	public PageId pageId(int[] serialized) {
+		return new BTreePageId(serialized[0], serialized[1], serialized[2]);
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -141,17 +154,27 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(data, pageOffset(id.getPageNumber()));
 		}
 	}
+
+	/**
+	 * Returns the offset in the file of the (non root pointer) page pgNo
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Close the file channel; it is opened again on the next read or write.
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
@@ -389,6 +412,10 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * Pages added to the dirtypages cache are also pinned in the buffer pool, so they are not
+	 * evicted halfway through a split or merge; insertTuple and deleteTuple unpin them when
+	 * they are done.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -405,10 +432,18 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
-			if(perm == Permissions.READ_WRITE) {
-				dirtypages.put(pid, p);
+			if(perm != Permissions.READ_WRITE) {
+				return Database.getBufferPool().getPage(tid, pid, perm);
 			}
+			Database.getBufferPool().pin(pid);
+			Page p;
+			try {
+				p = Database.getBufferPool().getPage(tid, pid, perm);
+			} catch (DbException | TransactionAbortedException | RuntimeException e) {
+				Database.getBufferPool().unpin(pid);
+				throw e;
+			}
+			dirtypages.put(pid, p);
 			return p;
 		}
 	}
@@ -426,28 +461,42 @@ public class BTreeFile implements DbFile {
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		try {
+			// get a read lock on the root pointer page and use it to locate the root page
+			BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+			BTreePageId rootId = rootPtr.getRootId();
+
+			if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
+				rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+				rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setRootId(rootId);
+			}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+			// find and lock the left-most leaf page corresponding to the key field,
+			// and split the leaf page if there are no more slots available
+			BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+			if(leafPage.getNumEmptySlots() == 0) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+			// insert the tuple into the leaf page
+			leafPage.insertTuple(t);
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			return new ArrayList<>(dirtypages.values());
+		} finally {
+			unpinAll(dirtypages);
 		}
+	}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
-        return new ArrayList<>(dirtypages.values());
+	/**
+	 * Unpin the pages getPage pinned when it added them to the dirtypages cache
+	 * 
+	 * @param dirtypages - the dirty pages of an insert or delete that is done
+	 */
+	private void unpinAll(Map<PageId, Page> dirtypages) {
+		for (PageId pid : dirtypages.keySet()) {
+			Database.getBufferPool().unpin(pid);
+		}
 	}
 	
 	/**
@@ -801,20 +850,23 @@ public class BTreeFile implements DbFile {
 	public List<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		try {
+			BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
+					BTreePageId.LEAF);
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+			page.deleteTuple(t);
+
+			// if the page is below minimum occupancy, get some tuples from its siblings
+			// or merge with one of the siblings
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			if(page.getNumEmptySlots() > maxEmptySlots) { 
+				handleMinOccupancyPage(tid, dirtypages, page);
+			}
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
-
-		// if the page is below minimum occupancy, get some tuples from its siblings
-		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			return new ArrayList<>(dirtypages.values());
+		} finally {
+			unpinAll(dirtypages);
 		}
-
-        return new ArrayList<>(dirtypages.values());
 	}
 
 	/**
@@ -832,13 +884,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				channel.write(emptyRootPtrData, 0);
+				channel.write(emptyLeafData, emptyRootPtrData.length);
 			}
 		}
 
@@ -894,11 +943,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.write(emptyData, pageOffset(numPages() + 1));
 				emptyPageNo = numPages();
 			}
 		}
@@ -929,14 +975,14 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		if (dirtypages.remove(newPageId) != null) {
+			// getPage会重新pin一次
+			Database.getBufferPool().unpin(newPageId);
+		}
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1083,10 +1129,37 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		// 找到的叶子还没pin，按id重新取一次，取之前先pin上
+		moveTo(f.findLeafPage(tid, root, null).getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Move on to leaf page pid, keeping only the page being iterated pinned.
+	 * The page is pinned before it is fetched, so it cannot be evicted in
+	 * between, and the page left behind is unpinned once it is in hand.
+	 */
+	private void moveTo(BTreePageId pid) throws DbException, TransactionAbortedException {
+		BufferPool bufferPool = Database.getBufferPool();
+		bufferPool.pin(pid);
+		BTreeLeafPage p;
+		try {
+			p = (BTreeLeafPage) bufferPool.getPage(tid, pid, Permissions.READ_ONLY);
+		} catch (DbException | TransactionAbortedException | RuntimeException e) {
+			bufferPool.unpin(pid);
+			throw e;
+		}
+		unpinCurrent();
+		curp = p;
+	}
+
+	private void unpinCurrent() {
+		if (curp != null) {
+			Database.getBufferPool().unpin(curp.getId());
+			curp = null;
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
 	 * from the next page by following the right sibling pointer.
@@ -1101,11 +1174,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		while (it == null && curp != null) {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
-				curp = null;
+				unpinCurrent();
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				moveTo(nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1131,7 +1203,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
-		curp = null;
+		unpinCurrent();
 	}
 }
 
@@ -1168,16 +1240,56 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
+		BTreeLeafPage first;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			first = f.findLeafPage(tid, root, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			first = f.findLeafPage(tid, root, null);
 		}
+		// 找到的叶子还没pin，按id重新取一次，取之前先pin上
+		moveTo(first.getId());
 		it = curp.iterator();
 	}
 
+	/**
+	 * Move on to leaf page pid, keeping only the page being iterated pinned.
+	 * The page is pinned before it is fetched, so it cannot be evicted in
+	 * between, and the page left behind is unpinned once it is in hand.
+	 */
+	private void moveTo(BTreePageId pid) throws DbException, TransactionAbortedException {
+		BufferPool bufferPool = Database.getBufferPool();
+		bufferPool.pin(pid);
+		BTreeLeafPage p;
+		try {
+			p = (BTreeLeafPage) bufferPool.getPage(tid, pid, Permissions.READ_ONLY);
+		} catch (DbException | TransactionAbortedException | RuntimeException e) {
+			bufferPool.unpin(pid);
+			throw e;
+		}
+		unpinCurrent();
+		curp = p;
+	}
+
+	private void unpinCurrent() {
+		if (curp != null) {
+			Database.getBufferPool().unpin(curp.getId());
+			curp = null;
+		}
+	}
+
+	/**
+	 * End the iteration, no more pages are needed
+	 * 
+	 * @return null
+	 */
+	private Tuple finish() {
+		it = null;
+		unpinCurrent();
+		return null;
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1197,24 +1309,23 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
 					// if the predicate was not satisfied and the operation is less than, we have
 					// hit the end
-					return null;
+					return finish();
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
 						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
-					return null;
+					return finish();
 				}
 			}
 
 			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
-				return null;
+				return finish();
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				moveTo(nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1236,5 +1347,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		unpinCurrent();
 	}
 }
@@ -274,6 +274,50 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @return the indexes of the fields of table that the filters, joins,
+     *   select list, aggregate and ORDER BY of this plan refer to, or null
+     *   if the query needs all of them
+     */
+    private int[] usedFields(LogicalScanNode table) {
+        List<String> names = new ArrayList<>();
+        for (LogicalFilterNode lf : filters) {
+            names.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*")) {
+                return null;
+            }
+            names.add(si.fname);
+        }
+        names.add(groupByField);
+        names.add(aggField);
+        names.add(oByField);
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        Set<Integer> fields = new TreeSet<>();
+        for (String name : names) {
+            // 子查询连接的f2为null
+            if (name == null || !name.startsWith(table.alias + ".")) {
+                continue;
+            }
+            try {
+                fields.add(td.fieldNameToIndex(name.substring(table.alias.length() + 1)));
+            } catch (NoSuchElementException e) {
+                // 未知的列名留给physicalPlan报错
+                return null;
+            }
+        }
+        if (fields.size() == td.numFields()) {
+            return null;
+        }
+        return fields.stream().mapToInt(Integer::intValue).toArray();
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -297,7 +341,7 @@ public class LogicalPlan {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias, usedFields(table));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -57,13 +57,20 @@ public class TableStats {
 
         System.out.println("Computing table stats.");
         while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            updateStatistics(tableIt.next());
         }
         System.out.println("Done.");
     }
 
+    /**
+     * Recompute the statistics of one table, e.g. after a bulk load changed
+     * its contents.
+     */
+    public static void updateStatistics(int tableid) {
+        TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
+        setTableStats(Database.getCatalog().getTableName(tableid), s);
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -112,7 +119,7 @@ public class TableStats {
         this.stringHistogramMap = new ConcurrentHashMap<>();
 
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableid);
-        this.numPage = ((HeapFile) dbFile).numPages();
+        this.numPage = dbFile.numPages();
 
         tupleDesc = Database.getCatalog().getTupleDesc(tableid);
         int numFields = tupleDesc.numFields();
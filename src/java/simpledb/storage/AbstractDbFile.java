@@ -0,0 +1,253 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Base class of the DbFiles that store their tuples on pages identified by
+ * HeapPageIds, one page after another in a single file: HeapFile,
+ * SlottedFile, CompressedFile and PaxFile. It reads and writes the pages
+ * through a {@link SharedFileChannel} and scans them in page order, reading
+ * ahead; subclasses only say how a page is made from its bytes and which
+ * tuples are on it.
+ */
+public abstract class AbstractDbFile implements DbFile {
+
+    protected final File file;
+    protected final TupleDesc tupleDesc;
+    protected final SharedFileChannel channel;
+
+    protected AbstractDbFile(File f, TupleDesc td) {
+        file = f;
+        tupleDesc = td;
+        channel = new SharedFileChannel(f);
+    }
+
+    /**
+     * Returns the File backing this DbFile on disk.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this DbFile, the hash code of the
+     * absolute path of its file.
+     */
+    public int getId() {
+        return this.file.getAbsolutePath().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.tupleDesc;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        byte[] buffer = new byte[BufferPool.getPageSize()];
+        try {
+            // 文件末尾之后的部分保持为0，即空page
+            channel.read(buffer, (long) buffer.length * pid.getPageNumber());
+            Page page = createPage(pid, buffer);
+            pageRead(page);
+            return page;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Read the bytes of page pid into frame, leaving the part past the end
+     * of the file zero, i.e. an empty page.
+     */
+    protected void readInto(PageId pid, ByteBuffer frame) throws IOException {
+        int read = channel.read(frame, (long) frame.remaining() * pid.getPageNumber());
+        // frame是复用的，文件末尾之后的部分要清成0
+        ByteBuffer rest = frame.duplicate();
+        rest.position(rest.position() + read);
+        while (rest.hasRemaining()) {
+            rest.put((byte) 0);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public abstract Page createPage(PageId pid, byte[] data) throws IOException;
+
+    /**
+     * Called with every page read from disk, e.g. to note how much room it
+     * has left. Does nothing by default.
+     */
+    protected void pageRead(Page page) {
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        channel.write(page.getPageData(), (long) pageSize * page.getId().getPageNumber());
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Returns the number of pages in this file.
+     */
+    public int numPages() {
+        int pageSize = BufferPool.getPageSize();
+        return (int) ((file.length() + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * Append numPages empty pages to the end of this file, so no other
+     * append gets them. Appends hold the monitor of this file while they
+     * pick their page numbers, and only while they do, so they do not
+     * block each other while they lock or log the pages.
+     *
+     * @return the number of the first page reserved
+     */
+    protected synchronized int reservePages(int numPages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int firstPage = numPages();
+        // 写最后一页就够了，中间的部分读出来是0，即空page
+        channel.write(new byte[pageSize], (long) (firstPage + numPages - 1) * pageSize);
+        return firstPage;
+    }
+
+    /**
+     * Lock the numPages pages from firstPage on exclusively for tid, log
+     * numPages pages of chunk as a new extent of tid, then write them at
+     * firstPage. Used to append pages without going through the
+     * BufferPool, see {@link HeapFile#bulkLoad}.
+     *
+     * @throws TransactionAbortedException if tid is aborted while waiting for a lock
+     */
+    protected void writeExtent(TransactionId tid, byte[] chunk, int firstPage, int numPages)
+            throws IOException, TransactionAbortedException {
+        int pageSize = BufferPool.getPageSize();
+        for (int p = firstPage; p < firstPage + numPages; p++) {
+            Database.getBufferPool().lockNewPage(tid, new HeapPageId(getId(), p));
+        }
+        Database.getLogFile().logNewExtent(tid, getId(), firstPage, numPages);
+        byte[] data = numPages * pageSize == chunk.length ? chunk : Arrays.copyOf(chunk, numPages * pageSize);
+        channel.write(data, (long) firstPage * pageSize);
+    }
+
+    /**
+     * Returns the tuples on page, a page of this file.
+     *
+     * @param fields the indexes of the fields needed, or null for all
+     *               fields; files that always decode whole tuples ignore it
+     */
+    protected abstract Iterator<Tuple> tuples(Page page, int[] fields);
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new PageIterator(tid, false, null);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid, boolean useOnce) {
+        return new PageIterator(tid, useOnce, null);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid, boolean useOnce, int[] fields) {
+        return new PageIterator(tid, useOnce, fields);
+    }
+
+    /**
+     * Iterates over the pages of the file in order. The page the iterator
+     * is on stays pinned until it moves on to the next page, runs out of
+     * pages, or is closed, since its tuples are decoded from the page as
+     * they are returned. The pages after it are read ahead in the
+     * background while the scan keeps going forward.
+     */
+    private class PageIterator extends AbstractDbFileIterator {
+
+        private final TransactionId tid;
+        private final boolean useOnce;
+        private final int[] fields;
+        private int pageNum;
+        private Iterator<Tuple> iterator;
+        private ReadAhead readAhead;
+        // 当前page，pin着直到离开它
+        private PageId pinned;
+
+        PageIterator(TransactionId tid, boolean useOnce, int[] fields) {
+            this.tid = tid;
+            this.useOnce = useOnce;
+            this.fields = fields;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            unpinCurrent();
+            pageNum = 0;
+            readAhead = new ReadAhead(getId());
+            iterator = numPages() > 0 ? pageIterator(pageNum) : null;
+        }
+
+        /** Move to page pageNum, giving up the pin of the page before it */
+        private Iterator<Tuple> pageIterator(int pageNum) throws DbException, TransactionAbortedException {
+            // 上一页的tuple已经读完了，先放开，小的pool里才有frame给下一页
+            unpinCurrent();
+            HeapPageId pid = new HeapPageId(getId(), pageNum);
+            readAhead.accessed(pageNum, numPages());
+            BufferPool bufferPool = Database.getBufferPool();
+            bufferPool.pin(pid);
+            try {
+                Page page = bufferPool.getPage(tid, pid, Permissions.READ_ONLY, useOnce);
+                Iterator<Tuple> tuples = tuples(page, fields);
+                pinned = pid;
+                return tuples;
+            } catch (DbException | TransactionAbortedException | RuntimeException e) {
+                bufferPool.unpin(pid);
+                throw e;
+            }
+        }
+
+        private void unpinCurrent() {
+            if (pinned != null) {
+                Database.getBufferPool().unpin(pinned);
+                pinned = null;
+            }
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (iterator == null) {
+                return null;
+            }
+            while (!iterator.hasNext()) {
+                if (++pageNum >= numPages()) {
+                    unpinCurrent();
+                    return null;
+                }
+                iterator = pageIterator(pageNum);
+            }
+            return iterator.next();
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            iterator = null;
+            unpinCurrent();
+        }
+    }
+}
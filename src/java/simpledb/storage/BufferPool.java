@@ -4,17 +4,24 @@ import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
+import simpledb.storage.evict.EvictPolicy;
 import simpledb.storage.evict.EvictStrategy;
-import simpledb.storage.evict.FIFOEvict;
-import simpledb.storage.evict.LRUEvict;
+import simpledb.storage.lock.DeadlockPolicy;
 import simpledb.storage.lock.LockManager;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -24,6 +31,17 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Lookups of cached pages take no latch at all. Everything that changes
+ * which page sits in a frame (loading, evicting, discarding, restoring on
+ * abort) latches only that page's stripe, and a missing page is read from
+ * disk by a single thread while other threads asking for it wait for that
+ * read. Flushing a dirty page writes the log, so as LogFile requires it also
+ * holds the BufferPool monitor, taken before the stripe latch.
+ * <p>
+ * Committing a transaction normally writes its pages to disk (FORCE). While
+ * a {@link PageCleaner} is running, committing only logs them, and the
+ * cleaner writes them back in the background.
  * 
  * @Threadsafe, all fields are final
  */
@@ -37,10 +55,60 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    private static final int LATCH_STRIPES = 64;
+
+    /** Default upper bound on the pages a scan reads ahead, see {@link #setMaxReadAhead} */
+    public static final int DEFAULT_READ_AHEAD = 8;
+
+    /** How long a read waits for a frame to become free before it gives up */
+    private static final long FRAME_WAIT_MILLIS = 2000;
+    private static final long FRAME_POLL_MILLIS = 10;
+
+    private static final int PREFETCH_THREADS = 2;
+    private static final int PREFETCH_QUEUE = 64;
+
     private Integer numPages;
     private Map<PageId, Page> pageCache;
     private LockManager lockManager;
 
+    // 已占用的frame数，包括正在从磁盘读入的page
+    private final AtomicInteger usedFrames = new AtomicInteger();
+    // frame空出来时notifyAll，等frame的读在上面wait
+    private final Object frameReleased = new Object();
+
+    // 正在从磁盘读入的page，同一个page只读一次
+    private final Map<PageId, FutureTask<Page>> loading = new ConcurrentHashMap<>();
+
+    private final Object[] latches = new Object[LATCH_STRIPES];
+    // 每个latch分片上discardPage的次数，改动时持有该分片的latch；
+    // 读盘期间这个数变了，读到的可能是discard之前的旧内容
+    private final long[] discards = new long[LATCH_STRIPES];
+
+    // 被pin住的page及pin的次数，改动时持有该page的latch
+    private final Map<PageId, Integer> pinCounts = new ConcurrentHashMap<>();
+
+    // 已提交、写了log但还没写回磁盘的page，只在有PageCleaner时出现；
+    // 值是之后第一条日志的LSN（recLSN），恢复从这里开始redo
+    private final Map<PageId, Long> committedDirty = new ConcurrentHashMap<>();
+
+    private volatile PageCleaner pageCleaner;
+
+    // 后台预读page的线程，队列满了就丢掉请求，反正只是提示
+    private final ThreadPoolExecutor prefetcher;
+
+    private volatile int maxReadAhead = DEFAULT_READ_AHEAD;
+
+    // 放before-image的堆外frame，没开启时为null
+    private final FrameArena arena;
+    // 每个page占用的frame，改动时持有该page的latch
+    private final Map<PageId, Integer> frameOf = new ConcurrentHashMap<>();
+
+    // 每个事务可能弄脏的page：以写权限取过的page，以及insert/delete改过的page
+    private Map<TransactionId, Set<PageId>> dirtiedPages;
+    // 每个事务通过insertTuple插入过或者锁过新page的表，事务结束时通知这些表
+    private final Map<TransactionId, Set<Integer>> insertedTables = new ConcurrentHashMap<>();
+
     EvictStrategy evict;
 
 
@@ -50,12 +118,75 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, DeadlockPolicy.DETECTION);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and handles
+     * deadlocks between transactions according to the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param deadlockPolicy how lock waits that could deadlock are resolved
+     */
+    public BufferPool(int numPages, DeadlockPolicy deadlockPolicy) {
+        this(numPages, deadlockPolicy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, optionally
+     * keeping the before-images of cached pages off the Java heap.
+     * <p>
+     * With offHeapFrames, one page sized frame per page is allocated up
+     * front as direct memory. Files that support it read a page straight
+     * into its frame and decode it from there (see
+     * {@link DbFile#readPage(PageId, ByteBuffer)}), so reading a page puts
+     * no copy of its bytes on the heap; other pages that support it move
+     * their before-image into a frame once cached (see
+     * {@link Page#attachFrame}). Tuples a transaction changes are still
+     * held on the heap until it completes. The memory the frames take is
+     * fixed no matter how the pool is used.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param deadlockPolicy how lock waits that could deadlock are resolved
+     * @param offHeapFrames true to keep before-images in off-heap frames
+     */
+    public BufferPool(int numPages, DeadlockPolicy deadlockPolicy, boolean offHeapFrames) {
+        this(numPages, deadlockPolicy, offHeapFrames, EvictPolicy.CLOCK);
+    }
+
+    /**
+     * Creates a BufferPool like {@link #BufferPool(int, DeadlockPolicy, boolean)}
+     * that picks the pages to evict with the given policy. CLOCK is the
+     * default; TWO_QUEUE keeps pages that are used repeatedly in the pool
+     * while large scans go through it.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param deadlockPolicy how lock waits that could deadlock are resolved
+     * @param offHeapFrames true to keep before-images in off-heap frames
+     * @param evictPolicy how the pages to evict are chosen
+     */
+    public BufferPool(int numPages, DeadlockPolicy deadlockPolicy, boolean offHeapFrames, EvictPolicy evictPolicy) {
         // some code goes here
         this.numPages = numPages;
+        this.arena = offHeapFrames ? new FrameArena(numPages, pageSize) : null;
         this.pageCache = new ConcurrentHashMap<PageId, Page>();
-//        this.evict = new FIFOEvict();
-        this.evict = new LRUEvict();
-        this.lockManager = new LockManager();
+        // 优先淘汰干净、没被pin住的page，脏页(包括已提交未写回的)要先写日志再刷盘
+        this.evict = evictPolicy.create(numPages, pageId -> {
+            Page page = pageCache.get(pageId);
+            return page == null || (!needsWrite(pageId, page) && !isPinned(pageId));
+        });
+        this.lockManager = new LockManager(deadlockPolicy);
+        this.dirtiedPages = new ConcurrentHashMap<>();
+        this.prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 1, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(PREFETCH_QUEUE), r -> {
+                    Thread t = new Thread(r, "PagePrefetcher");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.prefetcher.allowCoreThreadTimeOut(true);
+        for (int i = 0; i < latches.length; i++) {
+            latches[i] = new Object();
+        }
 
     }
     
@@ -90,42 +221,252 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, false);
+    }
 
-//        long start = System.currentTimeMillis();
-//        long timeout = new Random().nextInt(2000) + 1000;
-//        while (true) {
-//            if (lockManager.acquire(pid, tid, perm)) {
-//                break;
-//            }
-//            long now = System.currentTimeMillis();
-//            if (now - start > timeout) {
-//                throw new TransactionAbortedException();
-//            }
-//            try {
-//                Thread.sleep(100);
-//            } catch (InterruptedException e) {
-//                e.printStackTrace();
-//            }
-//        }
-        while(!lockManager.acquire(pid, tid, perm)){
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * optionally hinting that the caller will not come back to it soon.
+     *
+     * @param useOnce true if the page is read once by a scan, so the
+     *                eviction strategy may give it up before other pages
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, boolean useOnce)
+            throws TransactionAbortedException, DbException {
+
+        lockManager.acquire(pid, tid, perm);
+        if (perm == Permissions.READ_WRITE) {
+            trackDirtied(tid, pid);
+        }
+
+        Page page = pageCache.get(pid);
+        if (page == null) {
+            page = loadPage(pid);
+        }
+        if (useOnce) {
+            evict.modifyDataOnce(pid);
+        } else {
+            evict.modifyData(pid);
+        }
+        return page;
+        // some code goes here
+    }
+
+    /**
+     * Start reading pid into the pool in the background, unless it is cached
+     * or being read already. No lock is taken, the caller still has to get
+     * the page through getPage. The page counts as not used yet, and the
+     * scan reaching it with a use-once getPage does not count as a reuse.
+     * <p>
+     * This is only a hint: the request is dropped when the prefetch threads
+     * are busy, and failures are left for getPage to run into.
+     */
+    public void prefetchPage(PageId pid) {
+        if (pageCache.containsKey(pid) || loading.containsKey(pid)) {
+            return;
+        }
+        prefetcher.execute(() -> {
+            // 排队期间可能已经被getPage读进来了
+            if (pageCache.containsKey(pid) || loading.containsKey(pid)) {
+                return;
+            }
             try {
-                Thread.sleep(new Random().nextInt(100));
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                loadPage(pid);
+                evict.modifyDataPrefetched(pid);
+            } catch (DbException | TransactionAbortedException | RuntimeException ignored) {
+            }
+        });
+    }
+
+    /**
+     * Set the upper bound on the number of pages a sequential scan reads
+     * ahead of the page it is on; 0 turns read-ahead off.
+     */
+    public void setMaxReadAhead(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("read-ahead must not be negative");
+        }
+        maxReadAhead = pages;
+    }
+
+    /**
+     * @return the number of pages a sequential scan may read ahead, never
+     *         more than a quarter of the pool so that it cannot push out
+     *         the pages it is about to use
+     */
+    public int getMaxReadAhead() {
+        return Math.min(maxReadAhead, numPages / 4);
+    }
+
+    /** The latch guarding the frame of pid */
+    private Object latchOf(PageId pid) {
+        return latches[stripeOf(pid)];
+    }
+
+    private int stripeOf(PageId pid) {
+        return (pid.hashCode() & Integer.MAX_VALUE) % latches.length;
+    }
+
+    /**
+     * Bring pid into the pool. If another thread is already reading it, wait
+     * for that read instead of reading the page again.
+     */
+    private Page loadPage(PageId pid) throws DbException, TransactionAbortedException {
+        FutureTask<Page> load = new FutureTask<>(() -> readPage(pid));
+        FutureTask<Page> running = loading.putIfAbsent(pid, load);
+        if (running == null) {
+            running = load;
+            load.run();
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionAbortedException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DbException) {
+                throw (DbException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DbException(cause.toString());
+        }
+    }
+
+    /**
+     * Read pid from disk into a free frame. If the page is discarded while
+     * it is being read, e.g. because rollback or a bulk load just wrote it,
+     * what was read may be older than the disk, so the page is read again.
+     */
+    private Page readPage(PageId pid) throws DbException {
+        try {
+            Page page;
+            while ((page = tryReadPage(pid)) == null) {
+                // 读的时候被discard了，重新读
             }
+            return page;
+        } finally {
+            loading.remove(pid);
         }
+    }
 
-        evict.modifyData(pid);
-        if (!pageCache.containsKey(pid)) {
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbFile.readPage(pid);
-            if (pageCache.size() == numPages) {
-                evictPage();
+    /** @return the page read and cached, or null if pid was discarded while it was read */
+    private Page tryReadPage(PageId pid) throws DbException {
+        int stripe = stripeOf(pid);
+        long discarded;
+        synchronized (latches[stripe]) {
+            // 可能另一个线程刚读完
+            Page page = pageCache.get(pid);
+            if (page != null) {
+                return page;
+            }
+            discarded = discards[stripe];
+        }
+        Page page;
+        reserveFrame();
+        // 有堆外frame的话直接读进frame，page从frame里解析
+        int index = arena == null ? -1 : arena.allocate();
+        try {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            page = index < 0 ? null : file.readPage(pid, arena.frame(index));
+            if (page == null) {
+                if (index >= 0) {
+                    arena.release(index);
+                    index = -1;
+                }
+                page = file.readPage(pid);
+            }
+        } catch (RuntimeException e) {
+            releaseFrame();
+            if (index >= 0) {
+                arena.release(index);
+            }
+            throw e;
+        }
+        synchronized (latches[stripe]) {
+            Page cached = pageCache.get(pid);
+            if (cached != null || discards[stripe] != discarded) {
+                // 读到的page没人用，frame直接还回去
+                releaseFrame();
+                if (index >= 0) {
+                    arena.release(index);
+                }
+                return cached;
             }
             pageCache.put(pid, page);
+            if (index >= 0) {
+                frameOf.put(pid, index);
+            } else {
+                attachFrame(pid, page);
+            }
         }
-        return pageCache.get(pid);
-        // some code goes here
+        return page;
+    }
+
+    /**
+     * Take a free frame for a page about to be read, evicting pages until
+     * there is one. When there is nothing to evict, wait for a frame to be
+     * given back.
+     *
+     * @throws DbException if no frame becomes free within {@link #FRAME_WAIT_MILLIS}
+     */
+    private void reserveFrame() throws DbException {
+        long deadline = 0;
+        while (usedFrames.incrementAndGet() > numPages) {
+            usedFrames.decrementAndGet();
+            if (evictPage()) {
+                continue;
+            }
+            if (numPages <= 0) {
+                throw new DbException("no page to evict");
+            }
+            long now = System.currentTimeMillis();
+            if (deadline == 0) {
+                deadline = now + FRAME_WAIT_MILLIS;
+            } else if (now >= deadline) {
+                throw new DbException("no frame became free within " + FRAME_WAIT_MILLIS + " ms");
+            }
+            // frame被其他线程正在读入、刚淘汰或者还没进淘汰队列的page占着；
+            // 刚读完的page不会通知，所以只等一小会儿就再试
+            synchronized (frameReleased) {
+                if (usedFrames.get() >= numPages) {
+                    try {
+                        frameReleased.wait(Math.min(FRAME_POLL_MILLIS, deadline - now));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new DbException("interrupted while waiting for a free frame");
+                    }
+                }
+            }
+        }
+    }
+
+    /** Give back a frame taken by {@link #reserveFrame} or by a cached page */
+    private void releaseFrame() {
+        usedFrames.decrementAndGet();
+        synchronized (frameReleased) {
+            frameReleased.notifyAll();
+        }
+    }
+
+    /**
+     * Lock pid exclusively for tid without reading it into the pool, for a
+     * page a file writes around the pool, such as the pages of an extent
+     * appended by {@link HeapFile#bulkLoad}. The lock is released when tid
+     * completes, and the table of pid is told then through
+     * {@link DbFile#transactionComplete}.
+     *
+     * @throws TransactionAbortedException if tid is aborted while waiting
+     */
+    public void lockNewPage(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        // 先记下表，等锁时被回滚，表也会知道tid结束了
+        tableTouched(tid, pid.getTableId());
+        lockManager.acquire(pid, tid, Permissions.READ_WRITE);
     }
 
     /**
@@ -154,6 +495,37 @@ public class BufferPool {
         transactionComplete(tid, true);
     }
 
+    /**
+     * Pin the specified page, so it is not evicted until it is unpinned as
+     * many times as it was pinned. The page does not have to be in the
+     * buffer pool yet: pin before {@link #getPage} to make sure the page is
+     * not evicted between the two calls.
+     *
+     * @param pid the ID of the page to pin
+     */
+    public void pin(PageId pid) {
+        synchronized (latchOf(pid)) {
+            pinCounts.merge(pid, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Undo one {@link #pin} of the specified page. Does nothing if the page
+     * is not pinned, e.g. because it was pinned in a buffer pool that has
+     * since been reset.
+     *
+     * @param pid the ID of the page to unpin
+     */
+    public void unpin(PageId pid) {
+        synchronized (latchOf(pid)) {
+            pinCounts.computeIfPresent(pid, (k, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    private boolean isPinned(PageId pid) {
+        return pinCounts.containsKey(pid);
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
@@ -171,16 +543,103 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        PageCleaner cleaner = pageCleaner;
         if (commit) {
             try {
-                flushPages(tid);
+                if (cleaner != null) {
+                    logPages(tid);
+                } else {
+                    flushPages(tid);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }else {
             recoverPages(tid);
         }
+        dirtiedPages.remove(tid);
+        tablesComplete(tid, commit);
         lockManager.completeTransaction(tid);
+        if (commit && cleaner != null) {
+            cleaner.committed();
+        }
+    }
+
+    /**
+     * Start a background {@link PageCleaner} for this pool. While it runs,
+     * committing a transaction only logs its pages and the cleaner writes
+     * them back later.
+     *
+     * @param lowDirtyRatio a cleaning pass stops once committed but unwritten
+     *                      pages are at most this fraction of the pool
+     * @param highDirtyRatio a commit that leaves at least this fraction of the
+     *                       pool committed but unwritten starts a pass right away
+     * @param intervalMillis a pass also starts after this long without one
+     * @return the running cleaner, for its metrics
+     */
+    public synchronized PageCleaner startPageCleaner(double lowDirtyRatio, double highDirtyRatio, long intervalMillis) {
+        if (pageCleaner != null) {
+            throw new IllegalStateException("page cleaner already running");
+        }
+        PageCleaner cleaner = new PageCleaner(this, lowDirtyRatio, highDirtyRatio, intervalMillis);
+        cleaner.start();
+        pageCleaner = cleaner;
+        return cleaner;
+    }
+
+    /**
+     * Stop the background page cleaner, if any, and go back to writing the
+     * pages of a transaction when it commits. Committed pages the cleaner has
+     * not written yet are written when they are evicted or flushed.
+     */
+    public void stopPageCleaner() {
+        PageCleaner cleaner;
+        synchronized (this) {
+            cleaner = pageCleaner;
+            pageCleaner = null;
+        }
+        if (cleaner != null) {
+            cleaner.shutdown();
+        }
+    }
+
+    /** @return the running page cleaner, or null if there is none */
+    public PageCleaner getPageCleaner() {
+        return pageCleaner;
+    }
+
+    private void trackDirtied(TransactionId tid, PageId pid) {
+        if (tid != null) {
+            dirtiedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+        }
+    }
+
+    /** Remember to tell tableId when tid completes */
+    private void tableTouched(TransactionId tid, int tableId) {
+        if (tid != null) {
+            insertedTables.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(tableId);
+        }
+    }
+
+    /** Tell the tables tid inserted into that it has completed */
+    private void tablesComplete(TransactionId tid, boolean commit) {
+        Set<Integer> tables = insertedTables.remove(tid);
+        if (tables == null) {
+            return;
+        }
+        for (int tableId : tables) {
+            try {
+                Database.getCatalog().getDatabaseFile(tableId).transactionComplete(tid, commit);
+            } catch (NoSuchElementException ignored) {
+                // 表已经从catalog中删掉了
+            }
+        }
+    }
+
+    /** The pages tid may have dirtied, so commit and abort need not scan the whole pool */
+    private Set<PageId> dirtiedBy(TransactionId tid) {
+        Set<PageId> pages = dirtiedPages.get(tid);
+        return pages == null ? Collections.emptySet() : pages;
     }
 
     /**
@@ -204,6 +663,8 @@ public class BufferPool {
         // not necessary for lab1
 
         DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+        // 插入失败也要记下，表可能已经记住了tid要插入的page
+        tableTouched(tid, tableId);
 
 //        t.setRecordId(t.getRecordId().getPageId());
         updateBufferPool(table.insertTuple(tid, t), tid);
@@ -234,10 +695,23 @@ public class BufferPool {
     private void updateBufferPool(List<Page> pages, TransactionId tid) throws DbException {
         for (Page page : pages) {
             page.markDirty(true, tid);
+            trackDirtied(tid, page.getId());
 //            if (pageCache.size() == numPages) {
 //                evictPage();
 //            }
-            pageCache.put(page.getId(), page);
+            synchronized (latchOf(page.getId())) {
+                Page old = pageCache.put(page.getId(), page);
+                if (old == null) {
+                    usedFrames.incrementAndGet();
+                }
+                if (old != page) {
+                    if (old != null) {
+                        detachFrame(page.getId(), old);
+                    }
+                    attachFrame(page.getId(), page);
+                }
+            }
+            evict.modifyData(page.getId());
         }
     }
 
@@ -249,14 +723,13 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Iterator<Map.Entry<PageId, Page>> iterator = pageCache.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<PageId, Page> entry = iterator.next();
-            PageId pageId = entry.getKey();
-            Page page = entry.getValue();
-            if (page.isDirty() != null){
-                flushPage(pageId);
-                iterator.remove();
+        for (PageId pageId : pageCache.keySet()) {
+            synchronized (latchOf(pageId)) {
+                Page page = pageCache.get(pageId);
+                if (page != null && needsWrite(pageId, page)){
+                    flushPage(pageId);
+                    removeFrame(pageId);
+                }
             }
         }
     }
@@ -268,26 +741,84 @@ public class BufferPool {
         
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
+
+        A read of the page that is under way when it is discarded,
+        e.g. by read-ahead, reads the page again instead of caching
+        what it read before the discard.
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        if (pageCache.containsKey(pid)) {
-            pageCache.remove(pid);
+        int stripe = stripeOf(pid);
+        synchronized (latches[stripe]) {
+            removeFrame(pid);
+            // 正在读pid的线程不会把读到的旧内容放进缓存
+            discards[stripe]++;
+        }
+    }
+
+    /** Drop pid from its frame. Must hold the latch of pid. */
+    private void removeFrame(PageId pid) {
+        Page old = pageCache.remove(pid);
+        if (old != null) {
+            releaseFrame();
+            evict.removeData(pid);
+            detachFrame(pid, old);
         }
+        committedDirty.remove(pid);
     }
 
-    private synchronized void recoverPages(TransactionId tid){
-        Iterator<Map.Entry<PageId, Page>> iterator = pageCache.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<PageId, Page> entry = iterator.next();
-            PageId pageId = entry.getKey();
-            Page page = entry.getValue();
-            if (page.isDirty() == tid){
-                discardPage(pageId);
-                DbFile dbFile = Database.getCatalog().getDatabaseFile(pageId.getTableId());
-                page = dbFile.readPage(pageId);
-                pageCache.put(pageId, page);
+    /** Give page, just cached at pid, an off-heap frame if there is one. Must hold the latch of pid. */
+    private void attachFrame(PageId pid, Page page) {
+        if (arena == null) {
+            return;
+        }
+        int index = arena.allocate();
+        if (index < 0) {
+            // 缓存的page暂时比numPages多，这个page的before-image留在堆上
+            return;
+        }
+        if (page.attachFrame(arena.frame(index))) {
+            frameOf.put(pid, index);
+        } else {
+            arena.release(index);
+        }
+    }
+
+    /** Take back the frame of page, which is leaving the cache. Must hold the latch of pid. */
+    private void detachFrame(PageId pid, Page page) {
+        Integer index = frameOf.remove(pid);
+        if (index != null) {
+            // page对象可能还有人在用，before-image拷回堆上
+            page.detachFrame();
+            arena.release(index);
+        }
+    }
+
+    /**
+     * @return the number of off-heap frames holding a before-image, 0 if the
+     *         pool does not use off-heap frames
+     */
+    public int getOffHeapFramesInUse() {
+        return frameOf.size();
+    }
+
+    /** Return true if page has changes that are not on disk yet */
+    private boolean needsWrite(PageId pid, Page page) {
+        return page.isDirty() != null || committedDirty.containsKey(pid);
+    }
+
+    private void recoverPages(TransactionId tid){
+        for (PageId pageId : dirtiedBy(tid)) {
+            synchronized (latchOf(pageId)) {
+                Page page = pageCache.get(pageId);
+                if (page != null && page.isDirty() == tid){
+                    // before-image是最后提交的内容，有PageCleaner时磁盘上的可能还没写回
+                    Page restored = page.getBeforeImage();
+                    pageCache.put(pageId, restored);
+                    detachFrame(pageId, page);
+                    attachFrame(pageId, restored);
+                }
             }
         }
     }
@@ -300,60 +831,208 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page page = this.pageCache.get(pid);
+        synchronized (latchOf(pid)) {
+            Page page = this.pageCache.get(pid);
+            if (page == null) {
+                return;
+            }
 
-        TransactionId dirtier = page.isDirty();
-        if (dirtier != null){
-            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-            Database.getLogFile().force();
-        }
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null){
+                Database.getLogFile().logWrite(dirtier, page);
+                Database.getLogFile().force();
+            }
 
-        if (page.isDirty() != null){
-            table.writePage(page);
-            page.markDirty(false, null);
+            if (page.isDirty() != null){
+                table.writePage(page);
+                page.markDirty(false, null);
+            } else if (committedDirty.containsKey(pid)) {
+                // 提交时已经写过log，写回提交时的内容
+                Database.getLogFile().force();
+                table.writePage(page.getBeforeImage());
+            }
+            committedDirty.remove(pid);
         }
     }
 
     /** Write all pages of the specified transaction to disk.
+     * <p>
+     * The update records of all pages are logged first and the log is
+     * forced once, instead of once per page.
      */
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        Iterator<Map.Entry<PageId, Page>> iterator = pageCache.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<PageId, Page> entry = iterator.next();
-            PageId pageId = entry.getKey();
-            Page page = entry.getValue();
-            if (page.isDirty() == tid){
-                flushPage(pageId);
-                // use current page contents as the before-image
-                // for the next transaction that modifies this page.
-                page.setBeforeImage();
+        List<PageId> logged = new ArrayList<>();
+        for (PageId pageId : dirtiedBy(tid)) {
+            synchronized (latchOf(pageId)) {
+                Page page = pageCache.get(pageId);
+                if (page != null && page.isDirty() == tid){
+                    Database.getLogFile().logWrite(tid, page);
+                    logged.add(pageId);
+                }
+            }
+        }
+        if (logged.isEmpty()) {
+            return;
+        }
+        Database.getLogFile().force();
+        for (PageId pageId : logged) {
+            synchronized (latchOf(pageId)) {
+                Page page = pageCache.get(pageId);
+                if (page != null && page.isDirty() == tid){
+                    Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(page);
+                    page.markDirty(false, null);
+                    committedDirty.remove(pageId);
+                    // use current page contents as the before-image
+                    // for the next transaction that modifies this page.
+                    page.setBeforeImage();
+                }
+            }
+        }
+    }
+
+    /**
+     * Commit the pages of the specified transaction without writing them:
+     * log their after-images and leave the pages to the page cleaner.
+     */
+    private synchronized void logPages(TransactionId tid) throws IOException {
+        for (PageId pageId : dirtiedBy(tid)) {
+            synchronized (latchOf(pageId)) {
+                Page page = pageCache.get(pageId);
+                if (page != null && page.isDirty() == tid){
+                    long lsn = Database.getLogFile().logWrite(tid, page);
+                    page.setBeforeImage();
+                    page.markDirty(false, null);
+                    committedDirty.putIfAbsent(pageId, lsn);
+                }
             }
         }
     }
 
+    /**
+     * Write committed pages back to disk until at most lowDirtyRatio of the
+     * pool is committed but unwritten. Called by the page cleaner.
+     * <p>
+     * What gets written is the before-image, i.e. the page as of its last
+     * commit, so changes of a transaction still running on the page are
+     * never written without their log records. Pages are written oldest
+     * recLSN first, which moves the point recovery has to redo from.
+     *
+     * @return the number of pages written
+     */
+    int writeCommittedPages(double lowDirtyRatio) throws IOException {
+        List<Map.Entry<PageId, Long>> entries = new ArrayList<>(committedDirty.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        List<PageId> candidates = new ArrayList<>();
+        for (Map.Entry<PageId, Long> e : entries) {
+            candidates.add(e.getKey());
+        }
+        // 这些page的update log在加入committedDirty之前就写了，先force再写page
+        Database.getLogFile().force();
+        int target = (int) (numPages * lowDirtyRatio);
+        int written = 0;
+        for (PageId pid : candidates) {
+            if (committedDirty.size() <= target) {
+                break;
+            }
+            synchronized (latchOf(pid)) {
+                Page page = pageCache.get(pid);
+                if (page != null && committedDirty.containsKey(pid)) {
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page.getBeforeImage());
+                    // 写完才能从dirty page table里拿掉，checkpoint不会漏掉正在写的page
+                    committedDirty.remove(pid);
+                    written++;
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Returns the pages whose logged changes may not be on disk yet, with
+     * the LSN of the first log record of those changes (their recLSN).
+     * Recorded in checkpoints; recovery redoes a page from its recLSN on.
+     */
+    synchronized Map<PageId, Long> dirtyPageTable() {
+        return new HashMap<>(committedDirty);
+    }
+
+    int committedDirtyCount() {
+        return committedDirty.size();
+    }
+
+    double committedDirtyRatio() {
+        return (double) committedDirty.size() / numPages;
+    }
+
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Pinned pages are never discarded.
+     *
+     * @return false if the eviction strategy has no page to offer
+     * @throws DbException if every page the strategy offers is pinned, or
+     *         if the page to evict could not be written back; the page then
+     *         stays in the pool
      */
-    private synchronized  void evictPage() throws DbException {
+    private boolean evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        PageId evictPageId = evict.getEvictPageId();
-        Page page = pageCache.get(evictPageId);
-        // 有可能pool中该page已经被丢弃了，如rollback
-        while (page == null){
-            page = pageCache.get(evict.getEvictPageId());
-        }
-        if (page.isDirty() != null){
-            try {
-                flushPage(evictPageId);
-            } catch (IOException e) {
-                e.printStackTrace();
+        List<PageId> pinned = new ArrayList<>();
+        try {
+            PageId evictPageId;
+            while ((evictPageId = evict.getEvictPageId()) != null && isPinned(evictPageId)) {
+                pinned.add(evictPageId);
+            }
+            if (evictPageId == null) {
+                if (pinned.isEmpty()) {
+                    return false;
+                }
+                throw new DbException("all pages in the buffer pool are pinned");
+            }
+            Page page = pageCache.get(evictPageId);
+            // 有可能pool中该page已经被丢弃了，如rollback
+            if (page == null) {
+                return true;
+            }
+            if (needsWrite(evictPageId, page)) {
+                PageCleaner cleaner = pageCleaner;
+                if (cleaner != null) {
+                    cleaner.foregroundWrite();
+                }
+                // 刷脏页要写日志，按LogFile的要求先拿BufferPool的锁
+                synchronized (this) {
+                    synchronized (latchOf(evictPageId)) {
+                        if (!isPinned(evictPageId)) {
+                            try {
+                                flushPage(evictPageId);
+                            } catch (IOException e) {
+                                // 没写回去的page不能丢，有PageCleaner时它可能是已提交修改在log之外唯一的一份
+                                evict.modifyData(evictPageId);
+                                throw new DbException("could not write back page " + evictPageId + ": " + e);
+                            }
+                            removeFrame(evictPageId);
+                            return true;
+                        }
+                    }
+                }
+            } else {
+                synchronized (latchOf(evictPageId)) {
+                    if (!needsWrite(evictPageId, page) && pageCache.get(evictPageId) == page && !isPinned(evictPageId)) {
+                        removeFrame(evictPageId);
+                        return true;
+                    }
+                }
+            }
+            // 在拿到latch之前被弄脏、替换或者pin住了，放回去下次再淘汰
+            evict.modifyData(evictPageId);
+            return true;
+        } finally {
+            for (PageId pid : pinned) {
+                evict.modifyData(pid);
             }
         }
-        pageCache.remove(evictPageId);
 
         // NO STEAL  for lab4
 //        for (int i = 0; i < pageCache.size(); i++) {
@@ -0,0 +1,142 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * CompressedFile is a DbFile for cold or append-only tables that stores its
+ * tuples on CompressedPages, so a scan gets many more tuples out of every
+ * page it reads than from a HeapFile.
+ * <p>
+ * Tuples can only be added with {@link #append}, which compresses them into
+ * new pages at the end of the file; insertTuple and deleteTuple fail. A
+ * table is stored this way when its catalog entry ends in
+ * <code>compressed</code>, see {@link simpledb.common.Catalog#loadSchema}.
+ *
+ * @see CompressedPage
+ */
+public class CompressedFile extends AbstractDbFile {
+
+    /**
+     * Constructs a compressed file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            file.
+     */
+    public CompressedFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    // see DbFile.java for javadocs
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        return new CompressedPage((HeapPageId) pid, data);
+    }
+
+    /**
+     * Compress tuples into new pages at the end of this file on behalf of
+     * tid, packing as many tuples onto each page as fit.
+     * <p>
+     * Like {@link HeapFile#bulkLoad}, every {@link HeapFile#BULK_LOAD_PAGES}
+     * pages are logged as one EXTENT record before they are written, and
+     * all pages are forced to disk before this returns. An empty page
+     * decompresses to no tuples, so undoing the extent works the same way.
+     * The new pages are locked exclusively for tid until it completes.
+     *
+     * @param tid the transaction appending the tuples, which should have
+     *            been started with {@link simpledb.transaction.Transaction#start()}
+     * @param tuples the tuples to append
+     * @return the number of tuples appended
+     * @throws DbException if a tuple does not match the TupleDesc of this file
+     * @throws TransactionAbortedException if tid is aborted while waiting for
+     *         the lock of a new page
+     */
+    public int append(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        int pageSize = BufferPool.getPageSize();
+        byte[] chunk = new byte[HeapFile.BULK_LOAD_PAGES * pageSize];
+        // chunk里每一页放的tuple
+        List<List<Tuple>> placed = new ArrayList<>();
+        List<Tuple> pending = new ArrayList<>();
+        int count = 0;
+        while (tuples.hasNext() || !pending.isEmpty()) {
+            // 攒够一页能放的最多的tuple再压缩
+            while (pending.size() < CompressedPage.MAX_TUPLES && tuples.hasNext()) {
+                Tuple t = tuples.next();
+                if (!t.getTupleDesc().equals(tupleDesc)) {
+                    throw new DbException("tupledesc is mismatch, append failed");
+                }
+                pending.add(t);
+            }
+            int k = CompressedPage.fit(pending, tupleDesc);
+            if (k == 0) {
+                throw new DbException("tuple does not fit on a compressed page");
+            }
+            List<Tuple> onPage = pending.subList(0, k);
+            byte[] data = CompressedPage.encode(onPage, tupleDesc);
+            if (placed.size() == HeapFile.BULK_LOAD_PAGES) {
+                writeChunk(tid, chunk, placed);
+            }
+            System.arraycopy(data, 0, chunk, placed.size() * pageSize, data.length);
+            placed.add(new ArrayList<>(onPage));
+            onPage.clear();
+            count += k;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        writeChunk(tid, chunk, placed);
+        channel.force();
+        return count;
+    }
+
+    /**
+     * Reserve pages at the end of this file for the pages on chunk, then
+     * lock, log and write them, and empty chunk and placed for the next
+     * chunk. Only reserving the pages holds the monitor of this file.
+     */
+    private void writeChunk(TransactionId tid, byte[] chunk, List<List<Tuple>> placed)
+            throws IOException, TransactionAbortedException {
+        int firstPage = reservePages(placed.size());
+        for (int p = 0; p < placed.size(); p++) {
+            List<Tuple> onPage = placed.get(p);
+            for (int i = 0; i < onPage.size(); i++) {
+                onPage.get(i).setRecordId(new RecordId(new HeapPageId(getId(), firstPage + p), i));
+            }
+        }
+        writeExtent(tid, chunk, firstPage, placed.size());
+        for (int p = firstPage; p < firstPage + placed.size(); p++) {
+            Database.getBufferPool().discardPage(new HeapPageId(getId(), p));
+        }
+        Arrays.fill(chunk, (byte) 0);
+        placed.clear();
+    }
+
+    /**
+     * Compressed pages cannot be changed, use {@link #append} instead.
+     *
+     * @throws DbException always
+     */
+    public List<Page> insertTuple(TransactionId tid, Tuple t) throws DbException {
+        throw new DbException("compressed table is append-only, use CompressedFile.append");
+    }
+
+    /**
+     * Compressed pages cannot be changed.
+     *
+     * @throws DbException always
+     */
+    public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException {
+        throw new DbException("cannot delete from a compressed table");
+    }
+
+    @Override
+    protected Iterator<Tuple> tuples(Page page, int[] fields) {
+        return ((CompressedPage) page).iterator();
+    }
+}
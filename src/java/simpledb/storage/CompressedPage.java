@@ -0,0 +1,303 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Each instance of CompressedPage stores data for one page of a
+ * CompressedFile. On disk the page holds its tuples column by column, each
+ * column compressed; in the BufferPool the page is decompressed into
+ * Tuples once, when it is read.
+ * <p>
+ * The page starts with an int, the number of tuples n; a page of all zeroes
+ * is empty. Each column follows in order:
+ * <ul>
+ * <li> An int column is a sequence of n ints, stored as described below.
+ * <li> A string column is dictionary encoded: an int dictionary size, each
+ * distinct string as a 2 byte length followed by its bytes, in the order
+ * they first occur, and then the n dictionary codes as an int sequence.
+ * </ul>
+ * An int sequence starts with a mode byte. Mode {@link #PACKED} is followed
+ * by the values bit-packed; mode {@link #RLE} by an int number of runs, the
+ * value of each run bit-packed and the length of each run bit-packed. The
+ * encoder picks whichever is smaller. Bit-packing is frame-of-reference:
+ * an int minimum, a byte bit width w, and then every value minus the
+ * minimum in w bits, least significant bit first.
+ * <p>
+ * Compressed pages are only written by {@link CompressedFile#append}, which
+ * packs as many tuples onto a page as fit. They cannot be changed
+ * afterwards.
+ *
+ * @see CompressedFile
+ */
+public class CompressedPage implements Page {
+
+    static final byte PACKED = 0;
+    static final byte RLE = 1;
+
+    /** The most tuples put on one page, so a page decompresses to a bounded size */
+    public static final int MAX_TUPLES = 4096;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    private final byte[] data;
+    private final Tuple[] tuples;
+
+    private volatile TransactionId tid;
+
+    /**
+     * Create a CompressedPage from the bytes of a page read from disk, in the
+     * format described above, decompressing all of its tuples.
+     */
+    public CompressedPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+
+        ByteBuffer buf = ByteBuffer.wrap(this.data);
+        int n = buf.getInt();
+        if (n < 0 || n > MAX_TUPLES) {
+            throw new IOException("bad tuple count " + n + " on compressed page");
+        }
+        tuples = new Tuple[n];
+        for (int i = 0; i < n; i++) {
+            tuples[i] = new Tuple(td);
+            tuples[i].setRecordId(new RecordId(pid, i));
+        }
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                StringField[] dict = new StringField[buf.getInt()];
+                for (int d = 0; d < dict.length; d++) {
+                    byte[] bs = new byte[buf.getShort()];
+                    buf.get(bs);
+                    dict[d] = new StringField(new String(bs), Type.STRING_LEN);
+                }
+                int[] codes = readInts(buf, n);
+                for (int i = 0; i < n; i++) {
+                    tuples[i].setField(j, dict[codes[i]]);
+                }
+            } else {
+                int[] values = readInts(buf, n);
+                for (int i = 0; i < n; i++) {
+                    tuples[i].setField(j, new IntField(values[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Compress tuples into the bytes of a page.
+     *
+     * @return the compressed bytes, which may be longer than a page; the
+     *         caller checks that they fit
+     */
+    public static byte[] encode(List<Tuple> tuples, TupleDesc td) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            int n = tuples.size();
+            dos.writeInt(n);
+            for (int j = 0; j < td.numFields(); j++) {
+                int[] values = new int[n];
+                if (td.getFieldType(j) == Type.STRING_TYPE) {
+                    Map<String, Integer> dict = new LinkedHashMap<>();
+                    for (int i = 0; i < n; i++) {
+                        String s = ((StringField) tuples.get(i).getField(j)).getValue();
+                        Integer code = dict.get(s);
+                        if (code == null) {
+                            code = dict.size();
+                            dict.put(s, code);
+                        }
+                        values[i] = code;
+                    }
+                    dos.writeInt(dict.size());
+                    for (String s : dict.keySet()) {
+                        dos.writeShort(s.length());
+                        dos.writeBytes(s);
+                    }
+                } else {
+                    for (int i = 0; i < n; i++) {
+                        values[i] = ((IntField) tuples.get(i).getField(j)).getValue();
+                    }
+                }
+                writeInts(dos, values);
+            }
+            dos.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            // 写到内存里，不会发生
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the largest k such that the first k of tuples, at most
+     *         {@link #MAX_TUPLES}, compress into one page
+     */
+    public static int fit(List<Tuple> tuples, TupleDesc td) {
+        int pageSize = BufferPool.getPageSize();
+        // 压缩后的大小随k单调不减，二分查找
+        int lo = 0;
+        int hi = Math.min(tuples.size(), MAX_TUPLES);
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (encode(tuples.subList(0, mid), td).length <= pageSize) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private static void writeInts(DataOutputStream dos, int[] values) throws IOException {
+        int runs = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[i - 1]) {
+                runs++;
+            }
+        }
+        int[] runValues = new int[runs];
+        int[] runLengths = new int[runs];
+        int r = -1;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[i - 1]) {
+                runValues[++r] = values[i];
+            }
+            runLengths[r]++;
+        }
+
+        if (4 + packedSize(runValues) + packedSize(runLengths) < packedSize(values)) {
+            dos.writeByte(RLE);
+            dos.writeInt(runs);
+            writePacked(dos, runValues);
+            writePacked(dos, runLengths);
+        } else {
+            dos.writeByte(PACKED);
+            writePacked(dos, values);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buf, int n) throws IOException {
+        byte mode = buf.get();
+        if (mode == PACKED) {
+            return readPacked(buf, n);
+        }
+        if (mode != RLE) {
+            throw new IOException("bad int encoding " + mode + " on compressed page");
+        }
+        int runs = buf.getInt();
+        int[] runValues = readPacked(buf, runs);
+        int[] runLengths = readPacked(buf, runs);
+        int[] values = new int[n];
+        int i = 0;
+        for (int r = 0; r < runs; r++) {
+            Arrays.fill(values, i, i + runLengths[r], runValues[r]);
+            i += runLengths[r];
+        }
+        return values;
+    }
+
+    private static int bitWidth(int[] values, int min) {
+        long max = 0;
+        for (int v : values) {
+            max = Math.max(max, (long) v - min);
+        }
+        return 64 - Long.numberOfLeadingZeros(max);
+    }
+
+    private static int min(int[] values) {
+        int min = Integer.MAX_VALUE;
+        for (int v : values) {
+            min = Math.min(min, v);
+        }
+        return values.length == 0 ? 0 : min;
+    }
+
+    private static int packedSize(int[] values) {
+        int width = bitWidth(values, min(values));
+        return 5 + (int) (((long) values.length * width + 7) / 8);
+    }
+
+    private static void writePacked(DataOutputStream dos, int[] values) throws IOException {
+        int min = min(values);
+        int width = bitWidth(values, min);
+        dos.writeInt(min);
+        dos.writeByte(width);
+        long bits = 0;
+        int nbits = 0;
+        for (int v : values) {
+            bits |= ((long) v - min) << nbits;
+            nbits += width;
+            while (nbits >= 8) {
+                dos.writeByte((int) bits);
+                bits >>>= 8;
+                nbits -= 8;
+            }
+        }
+        if (nbits > 0) {
+            dos.writeByte((int) bits);
+        }
+    }
+
+    private static int[] readPacked(ByteBuffer buf, int n) {
+        int min = buf.getInt();
+        int width = buf.get();
+        int[] values = new int[n];
+        long mask = (1L << width) - 1;
+        long bits = 0;
+        int nbits = 0;
+        for (int i = 0; i < n; i++) {
+            while (nbits < width) {
+                bits |= (buf.get() & 0xffL) << nbits;
+                nbits += 8;
+            }
+            values[i] = (int) ((bits & mask) + min);
+            bits >>>= width;
+            nbits -= width;
+        }
+        return values;
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /** @return the number of tuples on this page */
+    public int getNumTuples() {
+        return tuples.length;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on
+     *         this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return Collections.unmodifiableList(Arrays.asList(tuples)).iterator();
+    }
+
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    /** A compressed page never changes, so it is its own before-image */
+    public CompressedPage getBeforeImage() {
+        return this;
+    }
+
+    public void setBeforeImage() {
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.tid = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return tid;
+    }
+}
@@ -8,6 +8,7 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -24,6 +25,19 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Read the specified page from disk into frame, a page sized off-heap
+     * frame of the BufferPool, and make a page that is decoded from the
+     * frame and keeps its before-image there, as if it had been given the
+     * frame with {@link Page#attachFrame}.
+     *
+     * @return the page, or null if this file does not read pages into
+     *         frames; {@link #readPage(PageId)} is used then
+     */
+    default Page readPage(PageId id, ByteBuffer frame) {
+        return null;
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -33,6 +47,31 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Returns the number of pages in this file.
+     */
+    int numPages();
+
+    /**
+     * Make a page of this file from its bytes, the way {@link #readPage}
+     * does after reading them from disk. Used by recovery, which applies
+     * logged changes to the bytes of a page and writes the result back.
+     *
+     * @throws IOException if the bytes are not a page of this file
+     */
+    default Page createPage(PageId id, byte[] data) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot create pages");
+    }
+
+    /**
+     * Returns the page id of this file that {@link PageId#serialize} turned
+     * into the given integers. Used to read page ids back from the log.
+     * The default is for files whose pages are identified by HeapPageIds.
+     */
+    default PageId pageId(int[] serialized) {
+        return new HeapPageId(serialized[0], serialized[1]);
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -73,6 +112,52 @@ public interface DbFile {
      */
     DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over all the tuples stored in this DbFile, that
+     * may tell the BufferPool its pages are only read once.
+     *
+     * @param useOnce true if each page is read once and not needed again
+     *                soon, as in a sequential scan
+     */
+    default DbFileIterator iterator(TransactionId tid, boolean useOnce) {
+        return iterator(tid);
+    }
+
+    /**
+     * Returns an iterator over all the tuples stored in this DbFile, of which
+     * only the given fields are needed. A DbFile that stores its columns
+     * separately can skip the others and leave them null in the returned
+     * tuples; other DbFiles return whole tuples.
+     *
+     * @param useOnce true if each page is read once and not needed again
+     *                soon, as in a sequential scan
+     * @param fields the indexes of the fields needed, or null for all fields
+     */
+    default DbFileIterator iterator(TransactionId tid, boolean useOnce, int[] fields) {
+        return iterator(tid, useOnce);
+    }
+
+    /**
+     * Release the file handles this DbFile keeps open. The {@link Catalog}
+     * calls this when the table is replaced or removed. A closed DbFile
+     * opens its file again the next time it is read or written.
+     *
+     * @throws IOException if closing the file fails
+     */
+    default void close() throws IOException {
+    }
+
+    /**
+     * Forget what this file remembers about tid, which has just committed
+     * or aborted. The BufferPool calls this for every table tid inserted
+     * into through it or locked new pages of, see
+     * {@link BufferPool#lockNewPage}.
+     *
+     * @param commit true if tid committed, false if it aborted
+     */
+    default void transactionComplete(TransactionId tid, boolean commit) {
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
@@ -0,0 +1,74 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A preallocated block of off-heap memory cut into page sized frames, one
+ * per page the BufferPool can hold.
+ * <p>
+ * The memory is allocated once, with direct ByteBuffers of at most
+ * {@value #MAX_CHUNK_BYTES} bytes each, so pools larger than 2 GB work too.
+ * Frames are handed out and given back by index; what lives in them is up
+ * to the pages they are attached to (see {@link Page#attachFrame}).
+ *
+ * @Threadsafe
+ */
+class FrameArena {
+
+    static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int frameSize;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+
+    // 由this保护
+    private final Deque<Integer> free = new ArrayDeque<>();
+
+    /**
+     * @param numFrames number of frames to allocate
+     * @param frameSize bytes per frame, i.e. the page size
+     */
+    FrameArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        this.framesPerChunk = Math.max(1, MAX_CHUNK_BYTES / frameSize);
+        int numChunks = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        for (int i = 0; i < numFrames; i++) {
+            free.addLast(i);
+        }
+    }
+
+    int getFrameSize() {
+        return frameSize;
+    }
+
+    /** @return the index of a free frame, or -1 if all frames are in use */
+    synchronized int allocate() {
+        Integer index = free.pollFirst();
+        return index == null ? -1 : index;
+    }
+
+    /** Give back a frame returned by {@link #allocate()} */
+    synchronized void release(int index) {
+        free.addFirst(index);
+    }
+
+    synchronized int freeFrames() {
+        return free.size();
+    }
+
+    /** @return a view of exactly the bytes of frame index */
+    ByteBuffer frame(int index) {
+        ByteBuffer chunk = chunks[index / framesPerChunk].duplicate();
+        int offset = (index % framesPerChunk) * frameSize;
+        chunk.position(offset);
+        chunk.limit(offset + frameSize);
+        return chunk.slice();
+    }
+}
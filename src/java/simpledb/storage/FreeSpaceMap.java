@@ -0,0 +1,151 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * In-memory map of which pages of a HeapFile have free slots, so an insert
+ * goes straight to a page with room instead of locking every page from the
+ * start of the file. PaxFile uses it too, as PaxPage has the same header.
+ * <p>
+ * The map is built from the page headers on disk the first time it is used,
+ * and kept up to date as pages are read from disk, filled and emptied. It is
+ * only a hint: HeapFile checks the page again under its lock. Every
+ * transaction keeps inserting into the page it inserted into last, and
+ * different transactions are given different pages as long as there are
+ * enough pages with room. The page a transaction inserted into last is
+ * forgotten when it completes, see {@link #transactionComplete}.
+ * <p>
+ * Pages a transaction appends without inserting into them one tuple at a
+ * time, see {@link #loaded}, count as full until it completes.
+ * <p>
+ * A page filled by a transaction that then aborts stays marked full until a
+ * tuple is deleted from it or it is read from disk again.
+ */
+class FreeSpaceMap {
+
+    private final SharedFileChannel channel;
+    private final TupleDesc td;
+
+    // 已知没有空槽的page，没有记录的page都当作有空槽
+    private final BitSet full = new BitSet();
+    private boolean built = false;
+    // 每个事务上次插入的page，事务结束时删掉
+    private final Map<TransactionId, Integer> targets = new HashMap<>();
+    // 每个事务批量导入、还没结束的page，以及其中提交后还有空槽的page
+    private final Map<TransactionId, BitSet> loads = new HashMap<>();
+    private final BitSet loading = new BitSet();
+    private final BitSet roomAfterLoad = new BitSet();
+
+    FreeSpaceMap(SharedFileChannel channel, TupleDesc td) {
+        this.channel = channel;
+        this.td = td;
+    }
+
+    /**
+     * Pick the page tid should try to insert into.
+     *
+     * @param numPages the number of pages in the file
+     * @return a page number below numPages that is not known to be full,
+     *         or -1 if every page is full
+     */
+    synchronized int pageFor(TransactionId tid, int numPages) throws IOException {
+        build();
+        Integer target = targets.get(tid);
+        if (target != null && target < numPages && !full.get(target)) {
+            return target;
+        }
+
+        Set<Integer> taken = new HashSet<>(targets.values());
+        int first = -1;
+        for (int p = full.nextClearBit(0); p < numPages; p = full.nextClearBit(p + 1)) {
+            if (!taken.contains(p)) {
+                targets.put(tid, p);
+                return p;
+            }
+            if (first < 0) {
+                first = p;
+            }
+        }
+        // 有空槽的page都是别的事务正在插入的，只好和它们抢
+        if (first >= 0) {
+            targets.put(tid, first);
+        }
+        return first;
+    }
+
+    /** Make pageNo the page tid tries first from now on */
+    synchronized void setTarget(TransactionId tid, int pageNo) {
+        targets.put(tid, pageNo);
+    }
+
+    /**
+     * Record that tid appended pages firstPage to lastPage in one go. They
+     * are not given to inserts until tid completes: then lastPage has room
+     * if lastHasRoom and tid committed, and all of them are empty if it
+     * aborted.
+     */
+    synchronized void loaded(TransactionId tid, int firstPage, int lastPage, boolean lastHasRoom)
+            throws IOException {
+        build();
+        loads.computeIfAbsent(tid, k -> new BitSet()).set(firstPage, lastPage + 1);
+        loading.set(firstPage, lastPage + 1);
+        full.set(firstPage, lastPage + 1);
+        roomAfterLoad.set(lastPage, lastHasRoom);
+    }
+
+    /**
+     * Forget the page tid inserted into last, so other transactions can
+     * have it, and give the pages it loaded to inserts.
+     */
+    synchronized void transactionComplete(TransactionId tid, boolean commit) {
+        targets.remove(tid);
+        BitSet pages = loads.remove(tid);
+        if (pages == null) {
+            return;
+        }
+        for (int p = pages.nextSetBit(0); p >= 0; p = pages.nextSetBit(p + 1)) {
+            // 回滚时导入的page都被清空了
+            full.set(p, commit && !roomAfterLoad.get(p));
+            loading.clear(p);
+            roomAfterLoad.clear(p);
+        }
+    }
+
+    /** Record whether pageNo has at least one empty slot */
+    synchronized void update(int pageNo, boolean hasRoom) {
+        // 导入的page在事务结束前保持为满，预读等读到它也不改
+        if (!loading.get(pageNo)) {
+            full.set(pageNo, !hasRoom);
+        }
+    }
+
+    /** Read the header of every page on disk, if that has not been done yet */
+    private void build() throws IOException {
+        if (built) {
+            return;
+        }
+        int pageSize = BufferPool.getPageSize();
+        int numSlots = HeapPage.numSlots(td.getSize());
+        byte[] header = new byte[(numSlots + 7) / 8];
+        long numPages = (channel.size() + pageSize - 1) / pageSize;
+        for (int p = 0; p < numPages; p++) {
+            Arrays.fill(header, (byte) 0);
+            channel.read(header, (long) p * pageSize);
+            full.set(p, isFull(header, numSlots));
+        }
+        built = true;
+    }
+
+    private static boolean isFull(byte[] header, int numSlots) {
+        for (int i = 0; i < numSlots / 8; i++) {
+            if (header[i] != (byte) 0xff) {
+                return false;
+            }
+        }
+        int rest = numSlots % 8;
+        return rest == 0 || (header[numSlots / 8] & ((1 << rest) - 1)) == (1 << rest) - 1;
+    }
+}
@@ -7,6 +7,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -19,10 +20,14 @@ import java.util.*;
  * @see HeapPage#HeapPage
  * @author Sam Madden
  */
-public class HeapFile implements DbFile {
+public class HeapFile extends AbstractDbFile {
 
-    private final File file;
-    private final TupleDesc tupleDesc;
+    /** The number of pages {@link #bulkLoad} writes with one write */
+    public static final int BULK_LOAD_PAGES = 256;
+
+    // 只读内存映射，没开启时为null
+    private final MappedSegments mapped;
+    private final FreeSpaceMap freeSpace;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -32,136 +37,131 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
-        // some code goes here
-        file = f;
-        tupleDesc = td;
+        this(f, td, false);
     }
 
     /**
-     * Returns the File backing this HeapFile on disk.
-     * 
-     * @return the File backing this HeapFile on disk.
-     */
-    public File getFile() {
-        // some code goes here
-        return file;
-    }
-
-    /**
-     * Returns an ID uniquely identifying this HeapFile. Implementation note:
-     * you will need to generate this tableid somewhere to ensure that each
-     * HeapFile has a "unique id," and that you always return the same value for
-     * a particular HeapFile. We suggest hashing the absolute file name of the
-     * file underlying the heapfile, i.e. f.getAbsoluteFile().hashCode().
-     * 
-     * @return an ID uniquely identifying this HeapFile.
+     * Constructs a heap file backed by the specified file, optionally
+     * reading its pages through a memory mapping of the file.
+     * <p>
+     * In memory-mapped mode readPage parses pages straight out of the mapped
+     * memory instead of reading them into a buffer first, which suits tables
+     * that are mostly read. Pages are still written through the file channel,
+     * and the mapping sees those writes right away.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            true to read pages through a memory mapping of f
      */
-    public int getId() {
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
-//        throw new UnsupportedOperationException("implement this");
-        return this.file.getAbsolutePath().hashCode();
+        super(f, td);
+        mapped = memoryMapped ? new MappedSegments(channel) : null;
+        freeSpace = new FreeSpaceMap(channel, td);
     }
 
     /**
-     * Returns the TupleDesc of the table stored in this DbFile.
-     * 
-     * @return TupleDesc of this DbFile.
+     * @return true if pages are read through a memory mapping of the file
      */
-    public TupleDesc getTupleDesc() {
-        // some code goes here
-        return this.tupleDesc;
+    public boolean isMemoryMapped() {
+        return mapped != null;
     }
 
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
-        int pageNumber = pid.getPageNumber();
-        int tableId = pid.getTableId();
-        int pageSize = BufferPool.getPageSize();
-        RandomAccessFile randomAccess = null;
-        try {
-            randomAccess = new RandomAccessFile(this.file, "r");
-            byte[] buffer = new byte[pageSize];
-            randomAccess.seek(pageSize * pageNumber);
-            randomAccess.read(buffer);
-            return new HeapPage((HeapPageId) pid, buffer);
-
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
+        if (mapped != null) {
             try {
-                randomAccess.close();
-            } catch (IOException ex) {
-                ex.printStackTrace();
+                ByteBuffer view = mapped.page(pid.getPageNumber());
+                if (view != null) {
+                    HeapPage page = new HeapPage((HeapPageId) pid, view);
+                    pageRead(page);
+                    return page;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
-            e.printStackTrace();
         }
-
-
-        return null;
+        return super.readPage(pid);
     }
 
     // see DbFile.java for javadocs
-    public void writePage(Page page) throws IOException {
-        // some code goes here
-        // not necessary for lab1
-        PageId pid = page.getId();
-
-        int pageNumber = pid.getPageNumber();
-        int pageSize = BufferPool.getPageSize();
-        RandomAccessFile randomAccess = null;
+    public Page readPage(PageId pid, ByteBuffer frame) {
+        if (mapped != null) {
+            // 映射的page本来就不在堆上
+            return null;
+        }
         try {
-            randomAccess = new RandomAccessFile(this.file, "rw");
-            byte[] buffer = page.getPageData();
-            randomAccess.seek(pageSize * pageNumber);
-            randomAccess.write(buffer);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            readInto(pid, frame);
+            HeapPage page = HeapPage.inFrame((HeapPageId) pid, frame);
+            pageRead(page);
+            return page;
         } catch (IOException e) {
-            try {
-                randomAccess.close();
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-            e.printStackTrace();
+            throw new RuntimeException(e);
         }
     }
 
-    /**
-     * Returns the number of pages in this HeapFile.
-     */
-    public int numPages() {
-        // some code goes here
-        int pageSize = BufferPool.getPageSize();
+    // see DbFile.java for javadocs
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        return new HeapPage((HeapPageId) pid, data);
+    }
 
-        return (int) Math.ceil (file.length() * 1.0 / pageSize);
+    @Override
+    protected void pageRead(Page page) {
+        freeSpace.update(page.getId().getPageNumber(), ((HeapPage) page).getNumEmptySlots() != 0);
     }
 
     // see DbFile.java for javadocs
+    public void close() throws IOException {
+        if (mapped != null) {
+            mapped.clear();
+        }
+        super.close();
+    }
+
+    /**
+     * Insert t into a page the free-space map says has room, starting with
+     * the page tid inserted into last. A page that turns out to be full is
+     * marked as such, and its lock is given back if tid did not hold one
+     * before. A new page is appended once no page has room.
+     */
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-//        Database.getBufferPool().getPage()
-        for (int num = 0; num < this.numPages(); num++) {
+        BufferPool bufferPool = Database.getBufferPool();
+        int num;
+        while ((num = freeSpace.pageFor(tid, this.numPages())) >= 0) {
             HeapPageId heapPageId = new HeapPageId(this.getId(), num);
+            boolean held = bufferPool.holdsLock(tid, heapPageId);
             // hashmap是引用，会修改原来的pool中的page
-            HeapPage heapPage = (HeapPage)Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_WRITE);
-            if(heapPage.getNumEmptySlots() != 0){
+            HeapPage heapPage = (HeapPage) bufferPool.getPage(tid, heapPageId, Permissions.READ_WRITE);
+            if (heapPage.getNumEmptySlots() != 0) {
                 heapPage.insertTuple(t);
+                freeSpace.update(num, heapPage.getNumEmptySlots() != 0);
                 return new ArrayList<Page>(Arrays.asList(heapPage));
             }
+            freeSpace.update(num, false);
+            if (!held) {
+                // 没有改过这一页，不用一直锁着
+                bufferPool.unsafeReleasePage(tid, heapPageId);
+            }
         }
         // 当所有的页都满时,我们需要创建新的页并写入文件中
-        BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
-        byte[] emptyPageData = HeapPage.createEmptyPageData();
-        // 向文件末尾添加数据
-        outputStream.write(emptyPageData);
-        outputStream.close();
+        int newPageNo;
+        synchronized (this) {
+            // 向文件末尾添加数据
+            newPageNo = this.numPages();
+            channel.write(HeapPage.createEmptyPageData(), (long) newPageNo * BufferPool.getPageSize());
+        }
+        freeSpace.setTarget(tid, newPageNo);
 
-        // 添加完成后的最后一页
-        HeapPageId heapPageId = new HeapPageId(this.getId(), this.numPages() - 1);
-        HeapPage heapPage = (HeapPage)Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_WRITE);
+        // 新添加的一页
+        HeapPageId heapPageId = new HeapPageId(this.getId(), newPageNo);
+        HeapPage heapPage = (HeapPage) bufferPool.getPage(tid, heapPageId, Permissions.READ_WRITE);
 
         heapPage.insertTuple(t);
+        freeSpace.update(newPageNo, heapPage.getNumEmptySlots() != 0);
 //        writePage(heapPage);  不写回
 
         return new ArrayList<Page>(Arrays.asList(heapPage));
@@ -169,6 +169,100 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
     }
 
+    /**
+     * Append tuples to the end of this file on behalf of tid, without going
+     * through the BufferPool one tuple at a time.
+     * <p>
+     * Tuples are packed into full pages in memory and written out
+     * {@link #BULK_LOAD_PAGES} pages at a time. Every such chunk is logged
+     * as a single EXTENT record before it is written, which aborting tid
+     * (or recovering without its commit) undoes by emptying the pages. All
+     * pages are forced to disk before this returns, so committing tid
+     * afterwards makes the load durable.
+     * <p>
+     * The new pages are locked exclusively for tid until it completes, and
+     * inserts of other transactions only use them once tid has committed.
+     * Inserts into this file only wait while the pages of a chunk are
+     * reserved, not while tid waits for their locks or forces the log.
+     *
+     * @param tid the transaction loading the tuples, which should have been
+     *            started with {@link simpledb.transaction.Transaction#start()}
+     * @param tuples the tuples to append
+     * @return the number of tuples appended
+     * @throws DbException if a tuple does not match the TupleDesc of this file
+     * @throws TransactionAbortedException if tid is aborted while waiting for
+     *         the lock of a new page
+     */
+    public int bulkLoad(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        int pageSize = BufferPool.getPageSize();
+        int tupleSize = tupleDesc.getSize();
+        int numSlots = HeapPage.numSlots(tupleSize);
+        int headerSize = (numSlots + 7) / 8;
+
+        byte[] chunk = new byte[BULK_LOAD_PAGES * pageSize];
+        // chunk里的第i个tuple放在第i / numSlots页的第i % numSlots个槽
+        List<Tuple> placed = new ArrayList<>();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        int count = 0;
+        while (tuples.hasNext()) {
+            Tuple t = tuples.next();
+            if (!t.getTupleDesc().equals(tupleDesc)) {
+                throw new DbException("tupledesc is mismatch, bulk load failed");
+            }
+            if (placed.size() == BULK_LOAD_PAGES * numSlots) {
+                writeChunk(tid, chunk, placed, numSlots);
+            }
+            int slot = placed.size() % numSlots;
+            int pageOffset = placed.size() / numSlots * pageSize;
+            chunk[pageOffset + slot / 8] |= (byte) (1 << (slot % 8));
+            baos.reset();
+            for (int j = 0; j < tupleDesc.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            System.arraycopy(baos.toByteArray(), 0, chunk, pageOffset + headerSize + slot * tupleSize,
+                    Math.min(baos.size(), tupleSize));
+            placed.add(t);
+            count++;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        writeChunk(tid, chunk, placed, numSlots);
+        channel.force();
+        return count;
+    }
+
+    /**
+     * Reserve pages at the end of this file for the tuples placed on chunk
+     * by {@link #bulkLoad}, then lock, log and write them, and empty chunk
+     * and placed for the next chunk. Only reserving the pages holds the
+     * monitor of this file, so inserts of other transactions go on while
+     * tid waits for the page locks or the log.
+     */
+    private void writeChunk(TransactionId tid, byte[] chunk, List<Tuple> placed, int numSlots)
+            throws IOException, TransactionAbortedException {
+        int n = (placed.size() + numSlots - 1) / numSlots;
+        int firstPage;
+        synchronized (this) {
+            firstPage = numPages();
+            // 先记成导入中再让文件变长，insertTuple才不会挑中这些page
+            freeSpace.loaded(tid, firstPage, firstPage + n - 1, placed.size() % numSlots != 0);
+            reservePages(n);
+        }
+        for (int i = 0; i < placed.size(); i++) {
+            placed.get(i).setRecordId(new RecordId(new HeapPageId(getId(), firstPage + i / numSlots), i % numSlots));
+        }
+        writeExtent(tid, chunk, firstPage, n);
+        for (int p = firstPage; p < firstPage + n; p++) {
+            // 以防pool里有读到过文件末尾之后的空page
+            Database.getBufferPool().discardPage(new HeapPageId(getId(), p));
+        }
+        Arrays.fill(chunk, (byte) 0);
+        placed.clear();
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -180,76 +274,20 @@ public class HeapFile implements DbFile {
 
         HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
+        freeSpace.update(pageNum, true);
 
         return new ArrayList<Page>(Arrays.asList(page));
         // not necessary for lab1
     }
 
-    // see DbFile.java for javadocs
-    public DbFileIterator iterator(TransactionId tid) {
-        // some code goes here
-        return new HeapFileIterator(this, tid);
+    @Override
+    public void transactionComplete(TransactionId tid, boolean commit) {
+        freeSpace.transactionComplete(tid, commit);
     }
 
-    private class HeapFileIterator implements  DbFileIterator{
-
-        private final HeapFile heapFile;
-        private final TransactionId tid;
-        private int pageNum = 0;
-        private Iterator<Tuple> iterator;
-
-        public HeapFileIterator(HeapFile heapFile, TransactionId tid) {
-            this.heapFile = heapFile;
-            this.tid = tid;
-
-        }
-
-        @Override
-        public void open() throws DbException, TransactionAbortedException {
-            pageNum = 0;
-            HeapPageId pid = new HeapPageId(heapFile.getId(), pageNum);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-            iterator = page.iterator();
-        }
-
-        @Override
-        public boolean hasNext() throws DbException, TransactionAbortedException {
-            if (iterator == null){
-                return false;
-            }
-
-            while (!iterator.hasNext()){
-                pageNum ++ ;
-                if (pageNum >= heapFile.numPages()){
-                    return false;
-                }
-                HeapPageId pid = new HeapPageId(heapFile.getId(), pageNum);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-                iterator = page.iterator();
-            }
-
-
-            return iterator.hasNext();
-        }
-
-        @Override
-        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
-            if (iterator == null || !iterator.hasNext()){
-                throw new NoSuchElementException("No next tuple");
-            }
-
-            return iterator.next();
-        }
-
-        @Override
-        public void rewind() throws DbException, TransactionAbortedException {
-            open();
-        }
-
-        @Override
-        public void close() {
-            iterator = null;
-        }
+    @Override
+    protected Iterator<Tuple> tuples(Page page, int[] fields) {
+        return ((HeapPage) page).iterator();
     }
 
 }
@@ -4,14 +4,24 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
 import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A page keeps the bytes it was read from and only parses its header up
+ * front; a tuple, or a single field of one, is decoded from those bytes when
+ * it is asked for. Tuples inserted since the bytes were last replaced by
+ * {@link #setBeforeImage()} are held as objects until then.
+ * <p>
+ * The last {@link #LSN_SIZE} bytes of the page hold its pageLSN, see
+ * {@link Page#getLSN()}; the slots fill the rest of the page.
  *
  * @see HeapFile
  * @see BufferPool
@@ -19,14 +29,28 @@ import java.io.*;
  */
 public class HeapPage implements Page {
 
+    /** Bytes at the end of every page that hold its pageLSN */
+    static final int LSN_SIZE = 8;
+
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
+    // 上次setBeforeImage之后插入的tuple，为null的槽从image里解析，由oldDataLock保护
     final Tuple[] tuples;
     final int numSlots;
+    // 由oldDataLock保护
+    private long lsn;
 
+    // 赋值之后不会再被写，所以before-image可以直接共用；image在frame或映射的文件里时为null
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    // 每个page自己的锁，装箱的Byte是所有page共用的
+    private final Object oldDataLock = new Object();
+    // BufferPool给的堆外frame，有的话before-image放在这里，oldData为null
+    private ByteBuffer frame;
+    // before-image所在的oldData、frame或文件的只读映射，tuples里为null的槽的内容就是它里面的字节
+    private ByteBuffer image;
+    // 上次setBeforeImage之后有没有插入或删除，由oldDataLock保护
+    private boolean modified;
 
     TransactionId tid;
 
@@ -35,7 +59,7 @@ public class HeapPage implements Page {
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor(((BufferPool.getPageSize() - LSN_SIZE)*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
@@ -44,32 +68,75 @@ public class HeapPage implements Page {
      * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
+     * <p>
+     * Only the header is parsed here, tuples are decoded from a copy of data
+     * as they are accessed; the copy is also the before-image of the page.
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, data, true);
+    }
+
+    /**
+     * Create a HeapPage from data, or from a page sized copy of it if copy
+     * is set. Without copy, data must be page sized and never change
+     * afterwards, since it becomes the before-image of the page.
+     */
+    private HeapPage(HeapPageId id, byte[] data, boolean copy) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        byte[] image = copy ? Arrays.copyOf(data, BufferPool.getPageSize()) : data;
+        header = Arrays.copyOf(image, getHeaderSize());
+        tuples = new Tuple[numSlots];
+        synchronized (oldDataLock) {
+            oldData = image;
+            this.image = ByteBuffer.wrap(image);
+            lsn = readLsn();
+        }
+    }
 
-        // allocate and read the header slots of this page
+    /**
+     * Create a HeapPage straight from a read-only view of its bytes, such as
+     * a slice of a memory-mapped file, without copying them into a byte[].
+     * The format is the same as for {@link #HeapPage(HeapPageId, byte[])}.
+     * <p>
+     * Tuples are decoded from the view itself. Since the view changes when
+     * the file under it is written, the bytes are copied to the heap the
+     * first time a tuple is inserted or deleted, before the page can be
+     * written back; the view must not change before then.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getNumTuples();
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++){
-            header[i] = dis.readByte();
+        data.duplicate().get(header);
+        tuples = new Tuple[numSlots];
+        synchronized (oldDataLock) {
+            image = data.slice();
+            lsn = readLsn();
         }
+    }
 
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+    /**
+     * Create a HeapPage decoded from frame, an off-heap frame holding the
+     * bytes of the page, which it keeps as its before-image as if it had
+     * been given the frame with {@link #attachFrame}.
+     */
+    static HeapPage inFrame(HeapPageId id, ByteBuffer frame) throws IOException {
+        HeapPage page = new HeapPage(id, frame);
+        synchronized (page.oldDataLock) {
+            page.frame = frame;
         }
-        dis.close();
+        return page;
+    }
 
-        setBeforeImage();
+    private static byte[] copyPage(ByteBuffer data) {
+        byte[] copy = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.get(copy, 0, Math.min(copy.length, src.remaining()));
+        return copy;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -77,10 +144,15 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-        // floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
-
-        return  (int) Math.floor((BufferPool.getPageSize() * 8 * 1.0) / ((td.getSize() * 8 + 1)));
+        return numSlots(td.getSize());
+    }
 
+    /**
+     * @return the number of slots on a page of a HeapFile whose tuples take
+     *         tupleSize bytes: floor(((BufferPool.getPageSize() - LSN_SIZE)*8) / (tupleSize * 8 + 1))
+     */
+    static int numSlots(int tupleSize) {
+        return ((BufferPool.getPageSize() - LSN_SIZE) * 8) / (tupleSize * 8 + 1);
     }
 
     /**
@@ -94,28 +166,98 @@ public class HeapPage implements Page {
                  
     }
     
+    /** @return where the pageLSN is kept, in the last LSN_SIZE bytes of the page */
+    private static int lsnOffset() {
+        return BufferPool.getPageSize() - LSN_SIZE;
+    }
+
+    /** @return the pageLSN in image. Must hold oldDataLock. */
+    private long readLsn() {
+        return image.getLong(lsnOffset());
+    }
+
+    public long getLSN() {
+        synchronized (oldDataLock) {
+            return lsn;
+        }
+    }
+
+    // 只记在字段里，getPageData时写进去
+    public void setLSN(long lsn) {
+        synchronized (oldDataLock) {
+            this.lsn = lsn;
+        }
+    }
+
     /** Return a view of this page before it was modified
-        -- used by recovery */
+        -- used by recovery
+        <p>
+        The view shares the bytes of the before-image with this page
+        unless they are in an off-heap frame or a mapped file, which are
+        copied. */
     public HeapPage getBeforeImage(){
-        try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                // frame可能在解析完之前被收回或被setBeforeImage改写，映射的文件会被写，所以在锁内拷贝
+                return new HeapPage(pid, copyPage(image), false);
             }
-            return new HeapPage(pid,oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
+            return new HeapPage(pid, oldData, false);
         }
-        return null;
     }
-    
+
+    public byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            return oldData == null ? copyPage(image) : oldData;
+        }
+    }
+
+    /**
+     * Make the current contents the before-image. Does nothing if no tuple
+     * was inserted or deleted since the last call, since the before-image
+     * then already holds the current contents.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+            if (!modified) {
+                return;
+            }
+            modified = false;
+            byte[] data = getPageData();
+            if (frame != null) {
+                frame.duplicate().put(data);
+            } else {
+                oldData = data;
+                image = ByteBuffer.wrap(data);
+            }
+            // 插入的tuple现在都在image里了
+            Arrays.fill(tuples, null);
+        }
+    }
+
+    public boolean attachFrame(ByteBuffer frame) {
+        synchronized (oldDataLock) {
+            if (this.frame != null || oldData == null || oldData.length != frame.capacity()) {
+                return false;
+            }
+            frame.duplicate().put(oldData);
+            this.frame = frame;
+            oldData = null;
+            image = frame;
+            return true;
+        }
+    }
+
+    public void detachFrame() {
+        synchronized (oldDataLock) {
+            if (frame != null) {
+                byte[] data = new byte[frame.capacity()];
+                frame.duplicate().get(data);
+                oldData = data;
+                image = ByteBuffer.wrap(data);
+                frame = null;
+            }
         }
     }
 
@@ -128,38 +270,59 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** @return the offset of slot i in the bytes of this page */
+    private int slotOffset(int i) {
+        return header.length + i * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decode the tuple in slot i, whether or not the slot is marked used.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private Tuple tupleAt(int i) {
+        synchronized (oldDataLock) {
+            if (tuples[i] != null) {
+                return tuples[i];
             }
-            return null;
+            Tuple t = new Tuple(td);
+            int offset = slotOffset(i);
+            for (int j = 0; j < td.numFields(); j++) {
+                Type type = td.getFieldType(j);
+                t.setField(j, type.parse(image, offset));
+                offset += type.getLen();
+            }
+            t.setRecordId(new RecordId(pid, i));
+            return t;
         }
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * @return the tuple in slot i, or null if the slot is empty. A tuple not
+     *         inserted into this page object is decoded on every call.
+     */
+    public Tuple getTuple(int i) {
+        return isSlotUsed(i) ? tupleAt(i) : null;
+    }
+
+    /**
+     * Decode only field j of the tuple in slot i, without building the rest
+     * of the tuple.
+     *
+     * @return the field, or null if the slot is empty
+     */
+    public Field getField(int i, int j) {
+        if (!isSlotUsed(i)) {
+            return null;
+        }
+        synchronized (oldDataLock) {
+            if (tuples[i] != null) {
+                return tuples[i].getField(j);
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            int offset = slotOffset(i);
+            for (int k = 0; k < j; k++) {
+                offset += td.getFieldType(k).getLen();
+            }
+            return td.getFieldType(j).parse(image, offset);
         }
-
-        return t;
     }
 
     /**
@@ -174,64 +337,41 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        int tupleSize = td.getSize();
+        byte[] data = new byte[BufferPool.getPageSize()];
+        System.arraycopy(header, 0, data, 0, header.length);
 
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        synchronized (oldDataLock) {
+            ByteBuffer src = image.duplicate();
+            for (int i=0; i<numSlots; i++) {
+                // empty slots stay zero
+                if (!isSlotUsed(i)) {
+                    continue;
+                }
+                int offset = slotOffset(i);
+                if (tuples[i] == null) {
+                    // 没有改过的槽直接拷字节
+                    src.position(offset);
+                    src.get(data, offset, tupleSize);
+                    continue;
+                }
+                baos.reset();
+                for (int j=0; j<td.numFields(); j++) {
                     try {
-                        dos.writeByte(0);
+                        tuples[i].getField(j).serialize(dos);
                     } catch (IOException e) {
+                        // this really shouldn't happen
                         e.printStackTrace();
                     }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
                 }
+                System.arraycopy(baos.toByteArray(), 0, data, offset, Math.min(baos.size(), tupleSize));
             }
+            ByteBuffer.wrap(data).putLong(lsnOffset(), lsn);
         }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        // the rest of the padding after the last slot stays zero
+        return data;
     }
 
     /**
@@ -259,7 +399,7 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         PageId pageId = t.getRecordId().getPageId();
-        if (pageId != pid){
+        if (!pid.equals(pageId)){
             throw new DbException("tuple is not on this page");
         }
         int tupleNumber = t.getRecordId().getTupleNumber();
@@ -295,7 +435,9 @@ public class HeapPage implements Page {
 
                 t.setRecordId(recordId);
 
-                tuples[i] = t;
+                synchronized (oldDataLock) {
+                    tuples[i] = t;
+                }
                 return ;
             }
         }
@@ -373,22 +515,62 @@ public class HeapPage implements Page {
         } else {
             header[byteIndex] = (byte) (header[byteIndex] & ~mask);  // 将该二进制位设为0
         }
+        synchronized (oldDataLock) {
+            if (frame == null && oldData == null) {
+                // image还是映射的文件，写回这一页会改掉它，先拷到堆上
+                oldData = copyPage(image);
+                image = ByteBuffer.wrap(oldData);
+            }
+            modified = true;
+        }
+    }
+
+    /**
+     * @return the first slot from slot from on whose bit is set in bitmap,
+     *         or numSlots if there is none
+     */
+    private int nextUsedSlot(byte[] bitmap, int from) {
+        int i = from;
+        while (i < numSlots) {
+            int bits = (bitmap[i >> 3] & 0xff) >>> (i & 7);
+            if (bits != 0) {
+                return Math.min(i + Integer.numberOfTrailingZeros(bits), numSlots);
+            }
+            // 这个字节剩下的位都是0
+            i = (i | 7) + 1;
+        }
+        return numSlots;
     }
 
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * The iterator walks a copy of the header taken when it is created, so
+     * tuples inserted afterwards are not returned, and decodes each tuple
+     * only when next() gets to it.
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        ArrayList<Tuple> ts = new ArrayList<>();
-        for (int i=0;i<numSlots;i++){
-            if (isSlotUsed(i)){
-                ts.add(tuples[i]);
+        final byte[] used = header.clone();
+        return new Iterator<Tuple>() {
+            private int next = nextUsedSlot(used, 0);
+
+            @Override
+            public boolean hasNext() {
+                return next < numSlots;
             }
-        }
-        return ts.iterator();
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = tupleAt(next);
+                next = nextUsedSlot(used, next + 1);
+                return t;
+            }
+        };
     }
 
 }
-
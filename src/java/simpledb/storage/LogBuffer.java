@@ -0,0 +1,334 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The in-memory tail of the log. LogFile appends records to a ring of
+ * direct buffers and a writer thread writes each buffer out with one
+ * sequential write, instead of every field of every record being written
+ * with its own system call.
+ * <p>
+ * Log positions are called LSNs here; an LSN is the position of a byte in
+ * the log, so the offsets LogFile keeps in its records are LSNs too. The log
+ * is kept in several files, see {@link LogSegments}; LogFile says with
+ * {@link #switchTo} where the bytes appended from now on go.
+ * {@link #force} waits until the log is durable up to an LSN. The writer
+ * thread does all forces, so a force covers every record appended before
+ * it, whichever transaction asked for it; see {@link #setGroupCommit} for
+ * how long it waits to gather more.
+ * <p>
+ * When LogFile starts a new log or recovers, see {@link #reset}, appending
+ * starts over in a new epoch. A force of an LSN from an older epoch returns
+ * right away, since the old log was forced completely before the reset.
+ */
+class LogBuffer {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int NUM_BUFFERS = 4;
+
+    /** A full buffer, with the file its bytes go to */
+    private static class Block {
+        final ByteBuffer buf;
+        final long start;
+        final FileChannel channel;
+        // channel的位置0对应的LSN
+        final long base;
+
+        Block(ByteBuffer buf, long start, FileChannel channel, long base) {
+            this.buf = buf;
+            this.start = start;
+            this.channel = channel;
+            this.base = base;
+        }
+    }
+
+    // 以下都由this保护
+    private FileChannel channel;
+    private long base;
+    // 写过但还没force过的文件
+    private final Set<FileChannel> unforced = new LinkedHashSet<>();
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    // 写满或者要刷出去的buffer，按LSN排好
+    private final ArrayDeque<Block> full = new ArrayDeque<>();
+    private ByteBuffer current;
+    private long currentStart;
+    // 已经写到文件里的LSN和已经force过的LSN
+    private long writtenLsn;
+    private long durableLsn;
+    // 有人在等force到这里
+    private long forceLsn;
+    private long epoch = 0;
+    private int waiting = 0;
+    private long maxWaitMicros = 0;
+    private int maxBatch = 1;
+    private long forceCount = 0;
+    private IOException failure;
+    private boolean closed = false;
+    private Thread writer;
+
+    LogBuffer() {
+        for (int i = 0; i < NUM_BUFFERS; i++) {
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+    }
+
+    /**
+     * Start appending at LSN end, in a new epoch, to channel, whose position
+     * 0 is LSN base. Everything appended before must be durable already.
+     */
+    synchronized void reset(FileChannel channel, long base, long end) {
+        for (Block block : full) {
+            block.buf.clear();
+            free.add(block.buf);
+        }
+        full.clear();
+        if (current != null) {
+            current.clear();
+        }
+        unforced.clear();
+        this.channel = channel;
+        this.base = base;
+        currentStart = end;
+        writtenLsn = durableLsn = forceLsn = end;
+        epoch++;
+        notifyAll();
+    }
+
+    /**
+     * Write what is appended from now on to channel, whose position 0 is
+     * LSN base; what was appended before still goes to the file it was
+     * meant for. Forces cover both files.
+     */
+    synchronized void switchTo(FileChannel channel, long base) {
+        seal();
+        this.channel = channel;
+        this.base = base;
+    }
+
+    /** @return the current epoch, see {@link #force} */
+    synchronized long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Append record to the log. The caller keeps track of the LSN it starts
+     * at.
+     */
+    synchronized void append(byte[] record) throws IOException {
+        if (closed) {
+            throw new IOException("log buffer is closed");
+        }
+        checkFailure();
+        int off = 0;
+        while (off < record.length) {
+            if (current == null || !current.hasRemaining()) {
+                seal();
+                while (free.isEmpty()) {
+                    if (closed) {
+                        throw new IOException("log buffer is closed");
+                    }
+                    checkFailure();
+                    await();
+                }
+                current = free.poll();
+            }
+            int n = Math.min(current.remaining(), record.length - off);
+            current.put(record, off, n);
+            off += n;
+        }
+    }
+
+    /** Hand the current buffer to the writer, if it holds anything. Must hold this. */
+    private void seal() {
+        if (current != null && current.position() > 0) {
+            current.flip();
+            full.add(new Block(current, currentStart, channel, base));
+            currentStart += current.limit();
+            current = null;
+            startWriter();
+            notifyAll();
+        }
+    }
+
+    private void startWriter() {
+        if (writer == null && !closed) {
+            writer = new Thread(this::run, "log writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /** Wait until the log is written to the files, not necessarily forced, up to lsn */
+    synchronized void flush(long lsn) throws IOException {
+        if (lsn > currentStart) {
+            seal();
+        }
+        while (writtenLsn < lsn && !closed) {
+            checkFailure();
+            await();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Wait until the log is durable up to lsn, unless lsn is from an older
+     * epoch than the current one.
+     */
+    void force(long lsn, long epoch) throws IOException {
+        synchronized (this) {
+            if (epoch != this.epoch) {
+                return;
+            }
+            waiting++;
+            try {
+                forceLsn = Math.max(forceLsn, lsn);
+                if (lsn > currentStart) {
+                    seal();
+                }
+                startWriter();
+                notifyAll();
+                while (epoch == this.epoch && durableLsn < lsn && !closed) {
+                    checkFailure();
+                    await();
+                }
+                checkFailure();
+            } finally {
+                waiting--;
+            }
+        }
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the log writer");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("log writer failed", failure);
+        }
+    }
+
+    /** The writer thread: write sealed buffers in order, and force when someone waits for it */
+    private void run() {
+        boolean gathered = false;
+        try {
+            while (true) {
+                Block block;
+                List<FileChannel> toForce = null;
+                long target;
+                long forEpoch;
+                synchronized (this) {
+                    while (!closed && full.isEmpty() && forceLsn <= durableLsn) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    block = full.poll();
+                    if (block == null && !gathered && maxWaitMicros > 0) {
+                        // 组提交：等一会儿让更多的事务排进来，再把这段时间写的记录一起force
+                        long deadline = System.nanoTime() + maxWaitMicros * 1000;
+                        long remaining;
+                        while (!closed && waiting < maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+                            wait(remaining / 1000000, (int) (remaining % 1000000));
+                        }
+                        gathered = true;
+                        if (forceLsn > currentStart) {
+                            seal();
+                        }
+                        continue;
+                    }
+                    if (block == null) {
+                        toForce = new ArrayList<>(unforced);
+                        unforced.clear();
+                    }
+                    target = block != null ? block.start + block.buf.limit() : writtenLsn;
+                    forEpoch = epoch;
+                }
+
+                if (block != null) {
+                    long pos = block.start - block.base;
+                    while (block.buf.hasRemaining()) {
+                        pos += block.channel.write(block.buf, pos);
+                    }
+                    synchronized (this) {
+                        block.buf.clear();
+                        free.add(block.buf);
+                        if (forEpoch == epoch) {
+                            writtenLsn = target;
+                            unforced.add(block.channel);
+                        }
+                        notifyAll();
+                    }
+                } else {
+                    // 换过文件的话，上一个文件的结尾也要force
+                    for (FileChannel ch : toForce) {
+                        ch.force(true);
+                    }
+                    gathered = false;
+                    synchronized (this) {
+                        if (!toForce.isEmpty()) {
+                            forceCount++;
+                        }
+                        if (forEpoch == epoch && target > durableLsn) {
+                            durableLsn = target;
+                        }
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                writer = null;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** See {@link LogFile#setGroupCommit} */
+    synchronized void setGroupCommit(long maxWaitMicros, int maxBatch) {
+        this.maxWaitMicros = maxWaitMicros;
+        this.maxBatch = maxBatch;
+    }
+
+    /** @return the number of times the writer forced the log */
+    synchronized long getForceCount() {
+        return forceCount;
+    }
+
+    /**
+     * Stop the writer thread without writing what it has not written yet,
+     * as if the system crashed there.
+     */
+    void close() {
+        Thread w;
+        synchronized (this) {
+            closed = true;
+            w = writer;
+            notifyAll();
+        }
+        if (w != null && w != Thread.currentThread()) {
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -6,8 +6,8 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -39,44 +39,119 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself only holds a long integer, the LSN of the last
+written checkpoint, or -1 if there are no checkpoints.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are kept in segment files next to it, see {@link
+LogSegments}.  The LSN of a record is its position in the log; LSNs only
+ever grow, also when the log is truncated or starts over.  Log records
+are variable length, and a record never spans two segments.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer, the LSN where the record
+began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, EXTENT, DELTA and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  They are no longer
+written, but recovery still reads them.
+
+<li> DELTA records are what updates of pages are logged as.  They
+consist of the table id of the page, the number of integers of its
+serialized page id and those integers, followed by the byte ranges the
+update changed, see {@link PageDelta#write}.  The delta of a page is
+taken against the page as of the previous update logged for it, so
+updates can be undone in reverse order and redone in log order.
+
+<li> CLR (compensation log) records are written when an update is
+undone, by a rollback or by recovery.  They consist of the page id and
+byte ranges of a DELTA record that puts back what the update changed,
+followed by a long integer offset of the record that was undone.  They
+are only ever redone, never undone.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, and of the
+dirty page table.  The format of the record is an integer count of the
+number of transactions, as well as a long integer transaction id and a
+long integer first record offset for each active transaction, followed
+by an integer count of dirty pages, and a page id (as in DELTA records)
+and a long integer recLSN for each of them: the offset of the first
+record whose change of the page may not be on disk yet.
+
+<li> EXTENT records describe pages a bulk load appended to a heap file
+without going through the BufferPool.  They consist of an integer table
+id, an integer first page number and an integer number of pages.  Undoing
+one overwrites those pages with empty pages.
 
 </ul>
+
+<u> Recovery: </u>
+<p>
+
+Recovery follows ARIES.  The analysis
+pass reads the log from the last checkpoint on, and finds the transactions
+that did not finish and the pages whose changes may not be on disk, with
+their recLSNs.  The redo pass repeats history from the smallest recLSN on:
+it redoes DELTA and CLR records of every transaction, skipping pages that
+are not in the dirty page table and records older than the recLSN of their
+page, so pages that are known to be up to date are not read at all.  A page
+keeps the LSN of the last record it holds, its pageLSN (see {@link
+Page#getLSN}), which is set when an update of the page is logged; records
+up to the pageLSN of a page on disk are skipped too, and only pages that a
+record was applied to are written back.  Heap, slotted and PAX pages
+reserve room for their pageLSN; pages whose format has none, such as B+
+tree pages, get every record from their recLSN on, as applying a delta
+twice gives the same bytes.  The undo pass reads the log backward and undoes the
+updates of the unfinished transactions, writing a CLR for each; updates a
+CLR of an earlier, crashed undo already put back are skipped.
+<p>
+
+<u> Log buffer and group commit: </u>
+<p>
+
+Records are not written to the log one field at a time.  Each record is
+put together in memory and appended to a {@link LogBuffer}, whose writer
+thread writes the log out in large sequential writes and forces it.
+{@link #force} only waits until the log is durable up to the last record
+appended.  Methods that read the log first wait until the buffer has been
+written out.
+<p>
+
+Committing transactions do not each force the log.  A transaction
+writes its COMMIT record and then waits, without holding the LogFile
+monitor, until the log is durable up to the end of that record.  The
+writer forces the log once for all of them; transactions that commit
+while it does wait for the next force.  See {@link #setGroupCommit} for
+how long the writer waits to gather a batch.
+<p>
+
+<u> Truncation: </u>
+<p>
+
+After a checkpoint, {@link #logTruncate} drops the segments that hold no
+record the checkpoint still needs.  Dropping them only takes them out of
+the list of segments; the files are deleted without holding the log
+monitor, and no record is moved or renumbered.
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    // 文件头，只有最后一个checkpoint的LSN
+    private final RandomAccessFile header;
+    // 日志记录所在的segment文件，由this保护
+    private final LogSegments log;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,17 +159,36 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int EXTENT_RECORD = 6;
+    static final int DELTA_RECORD = 7;
+    static final int CLR_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
+    // 新日志第一条记录的LSN；page没有pageLSN时是0，所以0不能是记录的LSN
+    static final long FIRST_LSN = 1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** The size a segment grows to before records go to a new one */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static int segmentSize = DEFAULT_SEGMENT_SIZE;
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    // 日志的内存尾部，currentOffset之前的记录都已经交给它了
+    private final LogBuffer logBuffer = new LogBuffer();
+    // 正在拼的日志记录，由this保护
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+    // 同一时间只做一个checkpoint
+    private final Object checkpointLock = new Object();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -108,7 +202,8 @@ public class LogFile {
     */
     public LogFile(File f) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        header = new RandomAccessFile(f, "rw");
+        log = new LogSegments(f);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -122,6 +217,16 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setSegmentSize(int segmentSize) {
+        LogFile.segmentSize = segmentSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetSegmentSize() {
+        LogFile.segmentSize = DEFAULT_SEGMENT_SIZE;
+    }
+
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
@@ -129,11 +234,49 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            // 新日志接着旧日志的LSN往后编，LSN不会变小
+            long end = Math.max(log.end(), FIRST_LSN);
+            header.seek(0);
+            header.setLength(0);
+            header.writeLong(NO_CHECKPOINT_ID);
+            log.clear();
+            currentOffset = end;
+            logBuffer.reset(log.create(end), end, end);
+        }
+    }
+
+    /** Start putting together a log record of the given type for tid.
+        Must hold this.
+        @return the stream to write the rest of the record to
+    */
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        recordBytes.reset();
+        record.writeInt(type);
+        record.writeLong(tid);
+        return record;
+    }
+
+    /** Finish the record started with beginRecord with its start offset
+        and append it to the log buffer.  Must hold this.
+        @return the offset the record starts at
+    */
+    private long endRecord() throws IOException {
+        long start = currentOffset;
+        // 当前segment写满了就从这条记录开始换一个，记录不跨segment
+        if (start - log.lastStart() >= segmentSize) {
+            logBuffer.switchTo(log.create(start), start);
+        }
+        record.writeLong(start);
+        logBuffer.append(recordBytes.toByteArray());
+        currentOffset = start + recordBytes.size();
+        return start;
+    }
+
+    /** Wait until everything appended to the log is in the segment files, so it
+        can be read back.  Must hold this. */
+    private void flushBuffer() throws IOException {
+        if (!recoveryUndecided) {
+            logBuffer.flush(currentOffset);
         }
     }
 
@@ -148,7 +291,7 @@ public class LogFile {
     public void logAbort(TransactionId tid) throws IOException {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
-
+        long end, epoch;
         synchronized (Database.getBufferPool()) {
 
             synchronized(this) {
@@ -160,14 +303,15 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                beginRecord(ABORT_RECORD, tid.getId());
+                endRecord();
                 tidToFirstLogRecord.remove(tid.getId());
+                end = currentOffset;
+                epoch = logBuffer.epoch();
             }
         }
+        // 和logCommit一样，不拿着BufferPool和this等fsync
+        logBuffer.force(end, epoch);
     }
 
     /** Write a commit record to disk for the specified tid,
@@ -175,17 +319,21 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long end, epoch;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId());
+            endRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            end = currentOffset;
+            epoch = logBuffer.epoch();
+        }
+        // 不拿着this等fsync，别的事务可以接着写日志
+        logBuffer.force(end, epoch);
 //        print();
     }
 
@@ -200,28 +348,186 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
-        /* update record conists of
+        /* delta record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page id (see writePageId)
+           changed byte ranges (see PageDelta)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        after.setLSN(logDelta(tid, PageDelta.diff(after.getId(), before.getPageData(), after.getPageData())));
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    /** Write a DELTA record to disk for the specified tid and page, with
+        the bytes that differ from the page's before-image.  The
+        before-image is the page as of the last update logged for it: the
+        BufferPool resets it when it logs a committed page, and drops a page
+        it writes out for a running transaction, which then reads it back
+        with the logged contents as its before-image.
+        @param tid The transaction performing the write
+        @param page The page, whose current contents are the after image
+        @return the LSN of the record
+
+        @see Page#getBeforeImageData
+    */
+    public synchronized long logWrite(TransactionId tid, Page page)
+        throws IOException {
+        preAppend();
+        long lsn = logDelta(tid, PageDelta.diff(page.getId(), page.getBeforeImageData(), page.getPageData()));
+        page.setLSN(lsn);
+        return lsn;
+    }
+
+    /** @return the LSN of the record */
+    private long logDelta(TransactionId tid, PageDelta delta) throws IOException {
+        DataOutputStream out = beginRecord(DELTA_RECORD, tid.getId());
+        writePageId(out, delta.pid);
+        delta.write(out);
+        return endRecord();
+    }
+
+    /** Write a CLR for the undo of the update at undoneLsn, which made delta
+        @return the LSN of the CLR */
+    private long logClr(long tid, long undoneLsn, PageDelta delta) throws IOException {
+        preAppend();
+        PageDelta redo = delta.inverse();
+        DataOutputStream out = beginRecord(CLR_RECORD, tid);
+        writePageId(out, redo.pid);
+        redo.write(out);
+        out.writeLong(undoneLsn);
+        return endRecord();
+    }
+
+    /** Write an EXTENT record for pages that tid appended to a heap file
+        directly, and force the log to disk.  The pages must not be
+        written before this returns.
+        @param tid The transaction that appends the pages
+        @param tableId The heap file the pages are appended to
+        @param firstPage The number of the first page appended
+        @param numPages The number of pages appended
+
+        @see HeapFile#bulkLoad
+    */
+    public void logNewExtent(TransactionId tid, int tableId,
+                             int firstPage, int numPages)
+        throws IOException {
+        long end, epoch;
+        synchronized (this) {
+            preAppend();
+            DataOutputStream out = beginRecord(EXTENT_RECORD, tid.getId());
+            out.writeInt(tableId);
+            out.writeInt(firstPage);
+            out.writeInt(numPages);
+            endRecord();
+            end = currentOffset;
+            epoch = logBuffer.epoch();
+        }
+        logBuffer.force(end, epoch);
+    }
+
+    /** Overwrite the pages of an EXTENT record with empty pages */
+    private void undoExtent(int tableId, int firstPage, int numPages) throws IOException {
+        DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+        for (int p = firstPage; p < firstPage + numPages; p++) {
+            HeapPageId pid = new HeapPageId(tableId, p);
+            // 全0的字节在每种page格式里都是空page
+            table.writePage(table.createPage(pid, new byte[BufferPool.getPageSize()]));
+            Database.getBufferPool().discardPage(pid);
+        }
+    }
+
+    /** Write the table id of pid and its serialized form */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeInt(pid.getTableId());
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
+
+    /** Read a page id written by writePageId, asking its table to make it */
+    static PageId readPageId(DataInput in) throws IOException {
+        int tableId = in.readInt();
+        int[] pageInfo = new int[in.readInt()];
+        for (int j = 0; j < pageInfo.length; j++) {
+            pageInfo[j] = in.readInt();
+        }
+        return Database.getCatalog().getDatabaseFile(tableId).pageId(pageInfo);
+    }
+
+    /** Read the rest of a DELTA record, the delta part of a CLR, or an
+        UPDATE record as the delta between its two images */
+    PageDelta readDelta(int type, DataInput in) throws IOException {
+        if (type == DELTA_RECORD || type == CLR_RECORD) {
+            PageId pid = readPageId(in);
+            return PageDelta.read(in, pid);
+        }
+        Page before = readPageData(in);
+        Page after = readPageData(in);
+        return PageDelta.diff(before.getId(), before.getPageData(), after.getPageData());
+    }
+
+    /** The pages a rollback or recovery works on: their bytes, read from
+        disk the first time they are needed, and their pageLSNs.  Only the
+        pages a record was applied to are written back. */
+    private static class PageImages {
+        private final Map<PageId, byte[]> bytes = new HashMap<>();
+        private final Map<PageId, Long> lsns = new HashMap<>();
+        // 有记录作用上去的page
+        private final Set<PageId> changed = new HashSet<>();
+
+        /** @return the bytes of page pid */
+        byte[] get(PageId pid) {
+            byte[] data = bytes.get(pid);
+            if (data == null) {
+                Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                data = page.getPageData();
+                bytes.put(pid, data);
+                lsns.put(pid, page.getLSN());
+            }
+            return data;
+        }
+
+        /** @return the pageLSN of page pid */
+        long lsn(PageId pid) {
+            get(pid);
+            return lsns.get(pid);
+        }
+
+        /** Note that the record at lsn was applied to the bytes of page pid */
+        void applied(PageId pid, long lsn) {
+            lsns.put(pid, lsn);
+            changed.add(pid);
+        }
+
+        /** Forget the numPages pages of table tableId from firstPage on */
+        void forget(int tableId, int firstPage, int numPages) {
+            bytes.keySet().removeIf(pid -> pid.getTableId() == tableId
+                    && pid.getPageNumber() >= firstPage && pid.getPageNumber() < firstPage + numPages);
+            lsns.keySet().retainAll(bytes.keySet());
+            changed.retainAll(bytes.keySet());
+        }
+
+        /** Write the changed pages back to their files with their pageLSNs,
+            and drop the cached copies */
+        void write() throws IOException {
+            for (PageId pid : changed) {
+                DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                Page page = table.createPage(pid, bytes.get(pid));
+                page.setLSN(lsns.get(pid));
+                table.writePage(page);
+                Database.getBufferPool().discardPage(pid);
+            }
+        }
+    }
+
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int[] pageInfo = pid.serialize();
 
@@ -248,44 +554,45 @@ public class LogFile {
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** Read a page written by writePageData.  The class names are not
+        used; the page's table makes the page id and the page. */
+    Page readPageData(DataInput in) throws IOException {
+        in.readUTF(); // page class name
+        in.readUTF(); // id class name
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        int[] pageInfo = new int[in.readInt()];
+        for (int i = 0; i < pageInfo.length; i++) {
+            pageInfo[i] = in.readInt();
+        }
+        // 序列化的page id第一个数都是table id
+        DbFile table = Database.getCatalog().getDatabaseFile(pageInfo[0]);
+        PageId pid = table.pageId(pageInfo);
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return table.createPage(pid, pageData);
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+    /** Read the rest of a CHECKPOINT record into active, the first record
+        of each active transaction, and dirty, the recLSN of each dirty page.
+        Either may be null to skip it. */
+    private void readCheckpoint(Map<Long, Long> active, Map<PageId, Long> dirty) throws IOException {
+        int numXactions = log.readInt();
+        while (numXactions-- > 0) {
+            long xid = log.readLong();
+            long xoffset = log.readLong();
+            if (active != null) {
+                active.put(xid, xoffset);
+            }
+        }
+        int numPages = log.readInt();
+        while (numPages-- > 0) {
+            PageId pid = readPageId(log);
+            long recLsn = log.readLong();
+            if (dirty != null) {
+                dirty.put(pid, recLsn);
+            }
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,151 +607,114 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), endRecord());
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: it does not write any page, the record lists the dirty
+        page table instead, and recovery redoes from the oldest recLSN in
+        it.  The BufferPool and log monitors are only held while the
+        record is put together, not while the log is forced. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+        synchronized (checkpointLock) {
+            long startCpOffset;
+            long epoch;
+            //make sure we have buffer pool lock before proceeding
+            synchronized (Database.getBufferPool()) {
+                synchronized (this) {
+                    //Debug.log("CHECKPOINT, offset = " + currentOffset);
+                    preAppend();
+                    Set<Long> keys = tidToFirstLogRecord.keySet();
+                    Iterator<Long> els = keys.iterator();
+                    DataOutputStream out = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+                    //write list of outstanding transactions
+                    out.writeInt(keys.size());
+                    while (els.hasNext()) {
+                        Long key = els.next();
+                        Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                        out.writeLong(key);
+                        //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                        out.writeLong(tidToFirstLogRecord.get(key));
+                    }
+
+                    //write the dirty page table; a page logged after this
+                    // is logged after the record too, so analysis finds it
+                    Map<PageId, Long> dirtyPages = Database.getBufferPool().dirtyPageTable();
+                    out.writeInt(dirtyPages.size());
+                    for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                        writePageId(out, e.getKey());
+                        out.writeLong(e.getValue());
+                    }
+                    startCpOffset = endRecord();
+                    epoch = logBuffer.epoch();
                 }
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            force();
+            synchronized (this) {
+                // 期间日志重新开始过的话，startCpOffset已经不在日志里了
+                if (epoch == logBuffer.epoch()) {
+                    header.seek(0);
+                    header.writeLong(startCpOffset);
+                }
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
-        }
 
-        logTruncate();
+            logTruncate();
+        }
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        // 截断起点
-        long minLogRecord = cpLoc;
+        consumption.  What the last checkpoint still needs is kept: its
+        active transactions from their first record on, and its dirty pages
+        from their recLSN on.  Only whole segments are dropped, see
+        {@link LogSegments}; their files are deleted without holding the
+        log monitor. */
+    public void logTruncate() throws IOException {
+        SortedMap<Long, FileChannel> dropped;
+        synchronized (this) {
+            preAppend();
+            flushBuffer();
+            header.seek(0);
+            long cpLoc = header.readLong();
+            if (cpLoc == NO_CHECKPOINT_ID) {
+                return;
+            }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
+            // 截断起点
+            long minLogRecord = cpLoc;
+            log.seek(cpLoc);
+            int cpType = log.readInt();
             @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            long cpTid = log.readLong();
 
             if (cpType != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
+            Map<Long, Long> active = new HashMap<>();
+            Map<PageId, Long> dirty = new HashMap<>();
+            readCheckpoint(active, dirty);
+            for (long firstLogRecord : active.values()) {
+                minLogRecord = Math.min(minLogRecord, firstLogRecord);
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+            for (long recLsn : dirty.values()) {
+                minLogRecord = Math.min(minLogRecord, recLsn);
             }
+            // 只是从segment列表里拿掉，没有记录要搬，LSN也不变
+            dropped = log.dropBefore(minLogRecord);
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        if (!dropped.isEmpty()) {
+            Debug.log("TRUNCATING LOG; DROPPING " + dropped.size() + " SEGMENTS BEFORE " + dropped.lastKey());
+        }
+        // 丢掉的segment都在checkpoint之前，早就force过，不拿着锁删文件
+        log.delete(dropped);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -460,54 +730,66 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 // some code goes here
-                long curOffset = raf.getFilePointer();
+                flushBuffer();
 
                 Long tidOff = tidToFirstLogRecord.get(tid.getId());
-                raf.seek(tidOff);
 //                System.out.println("tid start at " + tidOff);
 
+                // 磁盘上的page可能有也可能没有这个事务的修改，撤销的结果都一样
+                PageImages pages = new PageImages();
+                undo(Collections.singleton(tid.getId()), tidOff, pages);
+                // CLR落盘之后才能写page
+                force();
+                // 删除pool中的错误的page
+                pages.write();
+            }
+        }
+    }
 
-                // 当一个page有多条log时，取第一次的oldPage
-                HashSet<PageId> pageSet = new HashSet<>();
-
-                while (true) {
-                    try {
-                        int type = raf.readInt();
-                        long cpTid = raf.readLong();
-
-                        switch (type) {
-                            case UPDATE_RECORD:
-                                Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-
-                                if (cpTid == tid.getId() && !pageSet.contains(before.getId())){
-                                    DbFile table = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                                    table.writePage(before);
-
-                                    // 删除pool中的错误的page
-                                    Database.getBufferPool().discardPage(before.getId());
-                                    pageSet.add(before.getId());
-                                }
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int numXactions = raf.readInt();
-                                while (numXactions-- > 0) {
-                                    long xid = raf.readLong();
-                                    long xoffset = raf.readLong();
-                                }
-                                break;
+    /** Undo the updates of the given transactions, reading the log
+        backward from its end down to the record at stopAt, and write a
+        CLR for each update undone.  Updates that a CLR already put back
+        are skipped.  Must hold this, with the log buffer flushed.
+        @param pages the pages to undo the updates on
+    */
+    private void undo(Set<Long> tids, long stopAt, PageImages pages) throws IOException {
+        // 事务从这个LSN往后的update已经被CLR补偿过了
+        Map<Long, Long> undoneFrom = new HashMap<>();
+        // CLR会追加到日志末尾，只往回读到现在的末尾为止
+        long end = currentOffset;
+        while (end > stopAt) {
+            // 每条记录最后是它的起始位置
+            log.seek(end - LONG_SIZE);
+            long start = log.readLong();
+            log.seek(start);
+            int type = log.readInt();
+            long cpTid = log.readLong();
+
+            if (tids.contains(cpTid)) {
+                switch (type) {
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                        if (start < undoneFrom.getOrDefault(cpTid, Long.MAX_VALUE)) {
+                            PageDelta delta = readDelta(type, log);
+                            delta.undo(pages.get(delta.pid));
+                            pages.applied(delta.pid, logClr(cpTid, start, delta));
                         }
-
-                        raf.readLong();
-
-                    } catch (EOFException e) {
                         break;
-                    }
+                    case CLR_RECORD:
+                        readDelta(type, log);
+                        undoneFrom.merge(cpTid, log.readLong(), Math::min);
+                        break;
+                    case EXTENT_RECORD:
+                        int tableId = log.readInt();
+                        int firstPage = log.readInt();
+                        int numPages = log.readInt();
+                        undoExtent(tableId, firstPage, numPages);
+                        // 这些page直接是空page，不用再写回
+                        pages.forget(tableId, firstPage, numPages);
+                        break;
                 }
-
-                // Return the file pointer to its original position
-                raf.seek(curOffset);
             }
+            end = start;
         }
     }
 
@@ -516,10 +798,16 @@ public class LogFile {
         extensive
      y.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // checkpoint不写page，先把page都写回去
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                logBuffer.close();
+                header.close();
+                log.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -529,118 +817,124 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        See the class comment for the three passes.
     */
-    // 对所有未提交的事务，全部回滚
-    // 所有以提交的事务，再次确保同步到了磁盘中
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
-                long curOffset = raf.getFilePointer();
-
-                raf.seek(0);
-//                System.out.println("0: checkpoint record at offset " + raf.readLong());
-
-                HashSet<Long> commitTidSet = new HashSet<>();
-                HashSet<Long> unCommitTidSet = new HashSet<>();
-                // 先找出提交了的事务，其他的都回滚
-                // 没commit也没rollback也拿出来，最后添加一条rollback log
+                header.seek(0);
+                long cpLoc = header.length() >= LONG_SIZE ? header.readLong() : NO_CHECKPOINT_ID;
+
+                // analysis：从最后一个checkpoint开始，找出没结束的事务（和它的
+                // 第一条记录）以及可能没写回磁盘的page（和它的recLSN）
+                Map<Long, Long> active = new HashMap<>();
+                Map<PageId, Long> dirty = new HashMap<>();
+                long end = cpLoc != NO_CHECKPOINT_ID ? cpLoc : log.isEmpty() ? FIRST_LSN : log.first();
+                log.seek(end);
                 while (true) {
                     try {
-                        int type = raf.readInt();
-                        long cpTid = raf.readLong();
-                        totalRecords ++;
-                        unCommitTidSet.add(cpTid);
+                        long start = log.getFilePointer();
+                        int type = log.readInt();
+                        long cpTid = log.readLong();
 
                         switch (type) {
-                            case UPDATE_RECORD:
-                                Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-
+                            case BEGIN_RECORD:
+                                active.put(cpTid, start);
                                 break;
-                            case CHECKPOINT_RECORD:
-                                int numXactions = raf.readInt();
-                                while (numXactions-- > 0) {
-                                    long xid = raf.readLong();
-                                    long xoffset = raf.readLong();
+                            case COMMIT_RECORD:
+                            case ABORT_RECORD:
+                                // abort了的事务在写ABORT之前已经回滚过了
+                                active.remove(cpTid);
+                                break;
+                            case UPDATE_RECORD:
+                            case DELTA_RECORD:
+                            case CLR_RECORD:
+                                PageDelta delta = readDelta(type, log);
+                                if (type == CLR_RECORD) {
+                                    log.readLong();
                                 }
+                                active.putIfAbsent(cpTid, start);
+                                dirty.putIfAbsent(delta.pid, start);
                                 break;
-
-                            case COMMIT_RECORD:
-                                commitTidSet.add(cpTid);
-                                unCommitTidSet.remove(cpTid);
+                            case CHECKPOINT_RECORD:
+                                readCheckpoint(active, dirty);
                                 break;
-                            case ABORT_RECORD:
-                                unCommitTidSet.remove(cpTid);
+                            case EXTENT_RECORD:
+                                log.readInt();
+                                log.readInt();
+                                log.readInt();
+                                active.putIfAbsent(cpTid, start);
                                 break;
                         }
 
-                        raf.readLong();
+                        log.readLong();
+                        end = log.getFilePointer();
+                        totalRecords++;
 
                     } catch (EOFException e) {
                         break;
                     }
                 }
-
-                // Return the file pointer to its original position
-                raf.seek(0);
-//                System.out.println("0: checkpoint record at offset " + raf.readLong());
-
-                HashSet<PageId> pageBeforeSet = new HashSet<>();
-
-                while (true) {
-                    try {
-                        int type = raf.readInt();
-                        long cpTid = raf.readLong();
+                // 崩溃时最后一条记录可能只写了一半，丢掉
+                FileChannel last = log.truncate(end);
+
+                // redo：从最小的recLSN开始重做所有事务的修改，包括CLR；
+                // 不在dirty page table里的page，比recLSN早的记录，和page上
+                // 已经有的记录（不超过它的pageLSN）都跳过
+                PageImages pages = new PageImages();
+                if (!dirty.isEmpty()) {
+                    log.seek(Collections.min(dirty.values()));
+                    while (log.getFilePointer() < end) {
+                        long start = log.getFilePointer();
+                        int type = log.readInt();
+                        log.readLong();
 
                         switch (type) {
                             case UPDATE_RECORD:
-                                Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-
-                                // commit 针对写到log但还没来得及写回磁盘的数据
-                                if (commitTidSet.contains(cpTid)){
-                                    DbFile table = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                                    table.writePage(after);
+                            case DELTA_RECORD:
+                            case CLR_RECORD:
+                                PageDelta delta = readDelta(type, log);
+                                if (type == CLR_RECORD) {
+                                    log.readLong();
                                 }
-                                // 回滚， 注意只回滚第一次，因为第一次对应的才是最开始的before-image
-                                else if (!commitTidSet.contains(cpTid) && !pageBeforeSet.contains(before.getId())){
-                                    DbFile table = Database.getCatalog().getDatabaseFile(before.getId().getTableId());
-                                    table.writePage(before);
-
-                                    pageBeforeSet.add(before.getId());
+                                Long recLsn = dirty.get(delta.pid);
+                                if (recLsn != null && start >= recLsn && start > pages.lsn(delta.pid)) {
+                                    delta.redo(pages.get(delta.pid));
+                                    pages.applied(delta.pid, start);
                                 }
-
                                 break;
                             case CHECKPOINT_RECORD:
-                                int numXactions = raf.readInt();
-                                while (numXactions-- > 0) {
-                                    long xid = raf.readLong();
-                                    long xoffset = raf.readLong();
-                                }
+                                readCheckpoint(null, null);
+                                break;
+                            case EXTENT_RECORD:
+                                log.readInt();
+                                log.readInt();
+                                log.readInt();
                                 break;
                         }
 
-                        raf.readLong();
-
-                    } catch (EOFException e) {
-                        break;
+                        log.readLong();
                     }
                 }
 
-                currentOffset = raf.getFilePointer();
+                // undo：倒着撤销没结束的事务，从它们最早的记录往后
+                currentOffset = end;
+                logBuffer.reset(last, log.lastStart(), currentOffset);
+                if (!active.isEmpty()) {
+                    undo(active.keySet(), Collections.min(active.values()), pages);
+                }
+                // CLR落盘之后才能写page
+                force();
+                pages.write();
 
                 // 添加回滚log
-                Iterator<Long> iterator = unCommitTidSet.iterator();
-                while (iterator.hasNext()){
-                    Long next = iterator.next();
+                for (Long next : active.keySet()) {
                     preAppend();
 
-                    raf.writeInt(ABORT_RECORD);
-                    raf.writeLong(next);
-                    raf.writeLong(currentOffset);
-                    currentOffset = raf.getFilePointer();
+                    beginRecord(ABORT_RECORD, next);
+                    endRecord();
                 }
                 force();
 
@@ -649,57 +943,76 @@ public class LogFile {
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+    public synchronized void print() throws IOException {
+        flushBuffer();
 
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        header.seek(0);
+        System.out.println("checkpoint record at LSN " + header.readLong());
+        if (log.isEmpty()) {
+            return;
+        }
+        log.seek(log.first());
 
         while (true) {
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
+                int cpType = log.readInt();
+                long cpTid = log.readLong();
 
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
+                System.out.println((log.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
+                System.out.println((log.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
 
                 switch (cpType) {
                 case BEGIN_RECORD:
                     System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                     break;
                 case ABORT_RECORD:
                     System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                     break;
                 case COMMIT_RECORD:
                     System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                     break;
 
                 case CHECKPOINT_RECORD:
                     System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
+                    int numTransactions = log.readInt();
+                    System.out.println((log.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
 
                     while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        long tid = log.readLong();
+                        long firstRecord = log.readLong();
+                        System.out.println((log.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
+                        System.out.println((log.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                    }
+                    int numDirty = log.readInt();
+                    System.out.println((log.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+
+                    while (numDirty-- > 0) {
+                        long pidStart = log.getFilePointer();
+                        PageId pid = readPageId(log);
+                        System.out.println(pidStart + ": PAGE: table id " + pid.getTableId() + ", page number " + pid.getPageNumber());
+                        System.out.println(log.getFilePointer() + ": RECLSN: " + log.readLong());
                     }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
 
+                    break;
+                case EXTENT_RECORD:
+                    System.out.println(" (EXTENT)");
+                    System.out.println(log.getFilePointer() + ": TABLE ID: " + log.readInt());
+                    System.out.println(log.getFilePointer() + ": FIRST PAGE: " + log.readInt());
+                    System.out.println(log.getFilePointer() + ": NUMBER OF PAGES: " + log.readInt());
+                    System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+                    long start = log.getFilePointer();
+                    Page before = readPageData(log);
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+                    long middle = log.getFilePointer();
+                    Page after = readPageData(log);
 
                     System.out.println(start + ": before image table id " + before.getId().getTableId());
                     System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
@@ -707,9 +1020,23 @@ public class LogFile {
 
                     System.out.println(middle + ": after image table id " + after.getId().getTableId());
                     System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    System.out.println((middle + INT_SIZE) + " TO " + (log.getFilePointer()) + ": page data");
+
+                    System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                    break;
+                case DELTA_RECORD:
+                case CLR_RECORD:
+                    System.out.println(cpType == DELTA_RECORD ? " (DELTA)" : " (CLR)");
+
+                    long pidStart = log.getFilePointer();
+                    PageDelta delta = readDelta(cpType, log);
+                    System.out.println(pidStart + ": table id " + delta.pid.getTableId() + ", page number " + delta.pid.getPageNumber());
+                    System.out.println(pidStart + " TO " + log.getFilePointer() + ": " + delta.numRanges() + " changed byte ranges");
+                    if (cpType == CLR_RECORD) {
+                        System.out.println(log.getFilePointer() + ": UNDONE RECORD: " + log.readLong());
+                    }
+                    System.out.println(log.getFilePointer() + ": RECORD START OFFSET: " + log.readLong());
 
                     break;
                 }
@@ -719,13 +1046,48 @@ public class LogFile {
                 break;
             }
         }
+    }
+
+    /** Force everything appended to the log so far to disk.  Forces
+        of several threads at the same time are done together, see
+        {@link #setGroupCommit}. */
+    public void force() throws IOException {
+        long end, epoch;
+        synchronized (this) {
+            if (recoveryUndecided) {
+                return;
+            }
+            end = currentOffset;
+            epoch = logBuffer.epoch();
+        }
+        logBuffer.force(end, epoch);
+    }
+
+    /** Configure group commit.  Before the log writer forces the log, it
+        waits up to maxWaitMicros microseconds, or until maxBatch threads
+        are waiting for the force, so that one force covers more commits.
+        The default, 0 and 1, forces right away; commits that arrive during
+        a force still share the next one.
+        @param maxWaitMicros the longest a force is delayed to gather a batch
+        @param maxBatch the number of waiting threads that ends the delay
+    */
+    public void setGroupCommit(long maxWaitMicros, int maxBatch) {
+        if (maxWaitMicros < 0 || maxBatch < 1) {
+            throw new IllegalArgumentException("bad group commit window " + maxWaitMicros + "us / " + maxBatch);
+        }
+        logBuffer.setGroupCommit(maxWaitMicros, maxBatch);
+    }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+    /** @return the number of times the log was forced to disk */
+    public long getForceCount() {
+        return logBuffer.getForceCount();
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Stop using this log without writing out the records that are not
+        on disk yet, as if the system crashed.  Used when the Database is
+        reset. */
+    public void abandon() {
+        logBuffer.close();
     }
 
 }
@@ -0,0 +1,262 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * The files the records of a log are kept in. Log positions (LSNs) only
+ * ever grow: the log is cut into segment files named after the LSN of their
+ * first byte, each segment starts where the one before it ends, and no
+ * record spans two segments. Once no record in the oldest segments is needed
+ * any more, they are deleted as a whole instead of the log being rewritten.
+ * <p>
+ * Reading treats the segments as one file whose file pointer is an LSN, and
+ * reads ahead {@link #READ_SIZE} bytes at a time. Reading past the last
+ * segment throws an EOFException. Not thread-safe; LogFile uses it while it
+ * holds its monitor.
+ *
+ * @see LogFile
+ */
+class LogSegments extends DataInputStream {
+
+    static final int READ_SIZE = 64 * 1024;
+
+    private final File dir;
+    private final String name;
+    private final Cursor cursor;
+
+    /**
+     * Open the segments of the log called logFile: the files in its
+     * directory named after it, a dot and an LSN.
+     */
+    LogSegments(File logFile) throws IOException {
+        this(logFile, new Cursor());
+    }
+
+    private LogSegments(File logFile, Cursor cursor) throws IOException {
+        super(cursor);
+        this.cursor = cursor;
+        this.dir = logFile.getAbsoluteFile().getParentFile();
+        this.name = logFile.getName();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("cannot list " + dir);
+        }
+        for (File f : files) {
+            long start = startOf(f.getName());
+            if (start >= 0) {
+                cursor.segments.put(start, open(f));
+            }
+        }
+    }
+
+    /** @return the LSN the segment file called fileName starts at, or -1 if it is no segment of this log */
+    private long startOf(String fileName) {
+        if (!fileName.startsWith(name + ".")) {
+            return -1;
+        }
+        String suffix = fileName.substring(name.length() + 1);
+        if (suffix.isEmpty() || suffix.length() > 18 || !suffix.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Long.parseLong(suffix);
+    }
+
+    private File segmentFile(long start) {
+        return new File(dir, name + "." + start);
+    }
+
+    private static FileChannel open(File f) throws IOException {
+        return FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /** @return true if there are no segments */
+    boolean isEmpty() {
+        return cursor.segments.isEmpty();
+    }
+
+    /** @return the LSN of the first byte of the log; the log must not be empty */
+    long first() {
+        return cursor.segments.firstKey();
+    }
+
+    /** @return the LSN the last segment starts at; the log must not be empty */
+    long lastStart() {
+        return cursor.segments.lastKey();
+    }
+
+    /** @return the LSN just past the last byte in the files, or -1 if there are no segments */
+    long end() throws IOException {
+        if (cursor.segments.isEmpty()) {
+            return -1;
+        }
+        Map.Entry<Long, FileChannel> last = cursor.segments.lastEntry();
+        return last.getKey() + last.getValue().size();
+    }
+
+    /**
+     * Start a new, empty segment at LSN start, after the last one.
+     *
+     * @return the channel to write the segment with; its position 0 is LSN start
+     */
+    FileChannel create(long start) throws IOException {
+        File f = segmentFile(start);
+        FileChannel channel = open(f);
+        channel.truncate(0);
+        cursor.segments.put(start, channel);
+        return channel;
+    }
+
+    /**
+     * Cut the log off at LSN end: shorten the segment end falls into and
+     * delete the ones after it. If there is no segment yet, an empty one is
+     * started at end.
+     *
+     * @return the channel of the last segment, which now ends at end
+     */
+    FileChannel truncate(long end) throws IOException {
+        Map.Entry<Long, FileChannel> e = cursor.segments.floorEntry(end);
+        if (e == null) {
+            delete(new ArrayList<>(cursor.segments.keySet()));
+            return create(end);
+        }
+        delete(new ArrayList<>(cursor.segments.tailMap(end, false).keySet()));
+        e.getValue().truncate(end - e.getKey());
+        cursor.invalidate();
+        return e.getValue();
+    }
+
+    /** Delete all segments, for a log that starts over */
+    void clear() throws IOException {
+        delete(new ArrayList<>(cursor.segments.keySet()));
+    }
+
+    /**
+     * Take the segments that lie wholly before LSN lsn out of the log, so
+     * they are no longer read. The last segment is never taken out. The
+     * files are left alone; pass the result to {@link #delete(SortedMap)}.
+     *
+     * @return the segments taken out, by start LSN
+     */
+    SortedMap<Long, FileChannel> dropBefore(long lsn) {
+        TreeMap<Long, FileChannel> segments = cursor.segments;
+        SortedMap<Long, FileChannel> dropped = new TreeMap<>();
+        // 下一个segment的起点不超过lsn，这个segment里就没有还要的记录
+        Long next;
+        while (!segments.isEmpty() && (next = segments.higherKey(segments.firstKey())) != null && next <= lsn) {
+            Map.Entry<Long, FileChannel> e = segments.pollFirstEntry();
+            dropped.put(e.getKey(), e.getValue());
+        }
+        if (!dropped.isEmpty()) {
+            cursor.invalidate();
+        }
+        return dropped;
+    }
+
+    /**
+     * Close and delete segments taken out by {@link #dropBefore}, oldest
+     * first. Does not touch the segments still in the log, so LogFile calls
+     * it without holding its monitor.
+     */
+    void delete(SortedMap<Long, FileChannel> dropped) throws IOException {
+        for (Map.Entry<Long, FileChannel> e : dropped.entrySet()) {
+            e.getValue().close();
+            segmentFile(e.getKey()).delete();
+        }
+    }
+
+    /** Close and delete the given segments that are still in the log */
+    private void delete(List<Long> starts) throws IOException {
+        for (long start : starts) {
+            cursor.segments.remove(start).close();
+            segmentFile(start).delete();
+        }
+        cursor.invalidate();
+    }
+
+    /** Set the file pointer to LSN lsn */
+    void seek(long lsn) {
+        cursor.pos = lsn;
+    }
+
+    /** @return the LSN of the next byte read */
+    long getFilePointer() {
+        return cursor.pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (FileChannel channel : cursor.segments.values()) {
+            channel.close();
+        }
+        cursor.segments.clear();
+        cursor.invalidate();
+    }
+
+    /** Reads the segments from the file pointer on, through a buffer */
+    private static class Cursor extends InputStream {
+        final TreeMap<Long, FileChannel> segments = new TreeMap<>();
+        final ByteBuffer buf = ByteBuffer.allocate(READ_SIZE);
+        // buf里是从bufStart开始的bufLen个字节
+        long bufStart;
+        int bufLen;
+        long pos;
+
+        void invalidate() {
+            bufLen = 0;
+        }
+
+        /** Make the byte at pos be in buf. @return false at the end of the log */
+        private boolean fill() throws IOException {
+            if (pos >= bufStart && pos < bufStart + bufLen) {
+                return true;
+            }
+            // segment首尾相接，读完一个segment，pos就落在下一个里
+            Map.Entry<Long, FileChannel> e = segments.floorEntry(pos);
+            if (e == null) {
+                return false;
+            }
+            long offset = pos - e.getKey();
+            long size = e.getValue().size();
+            if (offset >= size) {
+                return false;
+            }
+            buf.clear();
+            buf.limit((int) Math.min(READ_SIZE, size - offset));
+            while (buf.hasRemaining()) {
+                if (e.getValue().read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+            bufStart = pos;
+            bufLen = buf.position();
+            return bufLen > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buf.get((int) (pos++ - bufStart)) & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = (int) Math.min(len, bufStart + bufLen - pos);
+            System.arraycopy(buf.array(), (int) (pos - bufStart), b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Read-only memory mapping of a DbFile, in segments of
+ * {@value #SEGMENT_PAGES} pages.
+ * <p>
+ * A segment is mapped the first time one of its pages is read, and mapped
+ * again, larger, once the file has grown past the part of it mapped so far.
+ * Since the mapping shares the OS page cache with the file, pages written
+ * through the file's channel show up in it right away.
+ */
+class MappedSegments {
+
+    static final int SEGMENT_PAGES = 4096;
+
+    private final SharedFileChannel channel;
+
+    // 由this保护
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private int pageSize = -1;
+
+    MappedSegments(SharedFileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Return a read-only view of the page at pageNo, straight on the mapped
+     * memory, or null if the file does not reach that far yet.
+     */
+    ByteBuffer page(int pageNo) throws IOException {
+        MappedByteBuffer segment;
+        int offset;
+        int size;
+        synchronized (this) {
+            size = BufferPool.getPageSize();
+            if (size != pageSize) {
+                // 页大小变了(只在测试中出现)，之前的映射都不能用
+                segments = new MappedByteBuffer[0];
+                pageSize = size;
+            }
+            int index = pageNo / SEGMENT_PAGES;
+            long start = (long) index * SEGMENT_PAGES * size;
+            offset = (pageNo % SEGMENT_PAGES) * size;
+            if (index >= segments.length) {
+                segments = Arrays.copyOf(segments, index + 1);
+            }
+            segment = segments[index];
+            if (segment == null || segment.capacity() < offset + size) {
+                long mappable = Math.min((long) SEGMENT_PAGES * size, channel.size() - start);
+                if (mappable < offset + size) {
+                    return null;
+                }
+                segment = channel.map(start, mappable);
+                segments[index] = segment;
+            }
+        }
+        ByteBuffer view = segment.duplicate();
+        view.position(offset);
+        view.limit(offset + size);
+        return view.slice();
+    }
+
+    /** Drop all segments, their memory is unmapped once they are collected */
+    synchronized void clear() {
+        segments = new MappedByteBuffer[0];
+    }
+}
@@ -2,6 +2,8 @@ package simpledb.storage;
 
 import simpledb.transaction.TransactionId;
 
+import java.nio.ByteBuffer;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -9,7 +11,7 @@ import simpledb.transaction.TransactionId;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
+ * For recovery purposes, pages MUST have a constructor of the form:
  *     Page(PageId id, byte[] data)
  */
 public interface Page {
@@ -53,9 +55,54 @@ public interface Page {
     */
     Page getBeforeImage();
 
+    /**
+     * The bytes of {@link #getBeforeImage()}, for writing to the log without
+     * building a page object first. The array may be shared with the page
+     * and must not be changed.
+     */
+    default byte[] getBeforeImageData() {
+        return getBeforeImage().getPageData();
+    }
+
+    /**
+     * Returns the pageLSN of this page: the LSN of the last log record whose
+     * change the page holds, kept in the bytes of the page so that it is
+     * written to disk with it. Recovery skips the records a page already
+     * holds. Pages whose format has no room for it return 0, which no log
+     * record has, so recovery applies every record to them.
+     */
+    default long getLSN() {
+        return 0;
+    }
+
+    /**
+     * Set the pageLSN of this page, see {@link #getLSN()}. Does nothing if
+     * the format of the page has no room for it.
+     */
+    default void setLSN(long lsn) {
+    }
+
     /*
      * a transaction that wrote this page just committed it.
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Keep the before-image of this page in frame, a page sized piece of
+     * off-heap memory owned by the BufferPool, instead of on the heap.
+     * Pages that do not support this return false and the frame stays free.
+     *
+     * @return true if the page now uses frame
+     */
+    default boolean attachFrame(ByteBuffer frame) {
+        return false;
+    }
+
+    /**
+     * Stop using the frame given to {@link #attachFrame}, moving the
+     * before-image back to the heap. Called before the frame is reused.
+     */
+    default void detachFrame() {
+    }
 }
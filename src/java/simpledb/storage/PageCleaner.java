@@ -0,0 +1,133 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background writer that trickles committed pages from the BufferPool to
+ * disk.
+ * <p>
+ * While a PageCleaner is running, committing a transaction only writes its
+ * update records to the log (see {@link BufferPool#transactionComplete}); the
+ * pages stay in the pool as committed but not yet written. Whenever those
+ * pages make up at least {@code highDirtyRatio} of the pool, or every
+ * {@code intervalMillis} otherwise, the cleaner forces the log and writes
+ * pages back until at most {@code lowDirtyRatio} of the pool is left, so that
+ * eviction nearly always finds a clean page and commits do not wait for page
+ * writes. A page that a running transaction is changing again is written as
+ * of its last commit.
+ * <p>
+ * Pages are written in the order of their recLSN, oldest first. Checkpoints
+ * do not write pages, see {@link LogFile#logCheckpoint}, so it is the
+ * cleaner that moves the point recovery redoes from, and lets the log be
+ * truncated further.
+ * <p>
+ * Start one with {@link BufferPool#startPageCleaner}.
+ */
+public class PageCleaner extends Thread {
+
+    private final BufferPool bufferPool;
+    private final double lowDirtyRatio;
+    private final double highDirtyRatio;
+    private final long intervalMillis;
+
+    private volatile boolean running = true;
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong pagesWritten = new AtomicLong();
+    private final AtomicLong foregroundWrites = new AtomicLong();
+
+    /**
+     * @param bufferPool the pool to clean
+     * @param lowDirtyRatio a pass stops once committed dirty pages are at most this fraction of the pool
+     * @param highDirtyRatio reaching this fraction starts a pass right away
+     * @param intervalMillis a pass also starts after this long without one
+     */
+    PageCleaner(BufferPool bufferPool, double lowDirtyRatio, double highDirtyRatio, long intervalMillis) {
+        if (lowDirtyRatio < 0 || lowDirtyRatio > highDirtyRatio || intervalMillis <= 0) {
+            throw new IllegalArgumentException("need 0 <= lowDirtyRatio <= highDirtyRatio and intervalMillis > 0");
+        }
+        this.bufferPool = bufferPool;
+        this.lowDirtyRatio = lowDirtyRatio;
+        this.highDirtyRatio = highDirtyRatio;
+        this.intervalMillis = intervalMillis;
+        setName("PageCleaner");
+        setDaemon(true);
+    }
+
+    public void run() {
+        while (running) {
+            synchronized (this) {
+                try {
+                    if (running) {
+                        wait(intervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (!running) {
+                break;
+            }
+            try {
+                clean();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Run one pass: write committed pages back until the low watermark is reached */
+    void clean() throws IOException {
+        passes.incrementAndGet();
+        pagesWritten.addAndGet(bufferPool.writeCommittedPages(lowDirtyRatio));
+    }
+
+    /** Called by the BufferPool after a commit, starts a pass early if the pool is too dirty */
+    void committed() {
+        if (bufferPool.committedDirtyRatio() >= highDirtyRatio) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /** Called by the BufferPool when a page miss had to write a page before evicting it */
+    void foregroundWrite() {
+        foregroundWrites.incrementAndGet();
+    }
+
+    /** Stop the cleaner and wait for the pass in progress to finish */
+    public void shutdown() {
+        // 不用interrupt，以免打断正在进行的磁盘IO
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return the number of cleaning passes run so far */
+    public long getPasses() {
+        return passes.get();
+    }
+
+    /** @return the number of pages written back by this cleaner */
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    /** @return the number of dirty pages page misses had to write themselves before evicting them */
+    public long getForegroundWrites() {
+        return foregroundWrites.get();
+    }
+
+    /** @return the number of committed pages in the pool not written to disk yet */
+    public int getCommittedDirtyPages() {
+        return bufferPool.committedDirtyCount();
+    }
+}
@@ -0,0 +1,142 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The change one logged update made to a page: the byte ranges of the page
+ * it modified, with their contents before and after the update. Inserting
+ * or deleting one tuple of a HeapPage changes a byte of the header and the
+ * bytes of its slot, so its update record holds those instead of two whole
+ * page images.
+ * <p>
+ * Applying the ranges does not depend on the class of the page, so every
+ * page format is logged the same way. Undoing the updates of a page in
+ * reverse order, or redoing them in log order, gives the page as it was
+ * before or after them, as long as each delta is taken against the page
+ * as of the previous update logged for it.
+ *
+ * @see LogFile
+ */
+class PageDelta {
+
+    // 两段修改之间隔得比这近就合成一段，省掉一段的offset和长度
+    private static final int MERGE_GAP = 8;
+
+    final PageId pid;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the delta that turns the page bytes before into after
+     * @throws IllegalArgumentException if the two are not the same size
+     */
+    static PageDelta diff(PageId pid, byte[] before, byte[] after) {
+        if (before.length != after.length) {
+            throw new IllegalArgumentException("page images of " + pid + " differ in size");
+        }
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < after.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // 往后找，直到连续MERGE_GAP个字节都没变
+            for (int j = end; j < after.length && j - end < MERGE_GAP; j++) {
+                if (before[j] != after[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+
+        int n = ranges.size();
+        int[] offsets = new int[n];
+        byte[][] beforeBytes = new byte[n][];
+        byte[][] afterBytes = new byte[n][];
+        for (int k = 0; k < n; k++) {
+            int[] r = ranges.get(k);
+            offsets[k] = r[0];
+            beforeBytes[k] = copy(before, r[0], r[1]);
+            afterBytes[k] = copy(after, r[0], r[1]);
+        }
+        return new PageDelta(pid, offsets, beforeBytes, afterBytes);
+    }
+
+    private static byte[] copy(byte[] data, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        System.arraycopy(data, from, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /** @return the delta that undoes this one, as logged in a CLR */
+    PageDelta inverse() {
+        return new PageDelta(pid, offsets, after, before);
+    }
+
+    /** @return the number of byte ranges the update changed */
+    int numRanges() {
+        return offsets.length;
+    }
+
+    /** Set the changed ranges of page to their contents after the update */
+    void redo(byte[] page) {
+        for (int k = 0; k < offsets.length; k++) {
+            System.arraycopy(after[k], 0, page, offsets[k], after[k].length);
+        }
+    }
+
+    /** Set the changed ranges of page back to their contents before the update */
+    void undo(byte[] page) {
+        for (int k = offsets.length - 1; k >= 0; k--) {
+            System.arraycopy(before[k], 0, page, offsets[k], before[k].length);
+        }
+    }
+
+    /**
+     * Write the ranges: their number, then for each range its offset, its
+     * length, its bytes before and its bytes after. The page id is up to
+     * the caller.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(offsets.length);
+        for (int k = 0; k < offsets.length; k++) {
+            out.writeInt(offsets[k]);
+            out.writeInt(before[k].length);
+            out.write(before[k]);
+            out.write(after[k]);
+        }
+    }
+
+    /** Read the ranges written by {@link #write} of a delta of page pid */
+    static PageDelta read(DataInput in, PageId pid) throws IOException {
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int k = 0; k < n; k++) {
+            offsets[k] = in.readInt();
+            int len = in.readInt();
+            before[k] = new byte[len];
+            in.readFully(before[k]);
+            after[k] = new byte[len];
+            in.readFully(after[k]);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
+}
@@ -0,0 +1,114 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * PaxFile is a DbFile that stores a collection of tuples in no particular
+ * order on PaxPages, which keep the values of each column together. A scan
+ * that is told which fields it needs, see
+ * {@link DbFile#iterator(TransactionId, boolean, int[])}, decodes only
+ * those columns, which pays off for wide tables of which a query touches a
+ * few columns.
+ * <p>
+ * A table is stored this way when its catalog entry ends in
+ * <code>pax</code>, see {@link simpledb.common.Catalog#loadSchema}.
+ *
+ * @see PaxPage
+ */
+public class PaxFile extends AbstractDbFile {
+
+    // 页头和HeapPage一样，可以直接用同一个空闲空间表
+    private final FreeSpaceMap freeSpace;
+
+    /**
+     * Constructs a PAX file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            file.
+     */
+    public PaxFile(File f, TupleDesc td) {
+        super(f, td);
+        freeSpace = new FreeSpaceMap(channel, td);
+    }
+
+    // see DbFile.java for javadocs
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        return new PaxPage((HeapPageId) pid, data);
+    }
+
+    @Override
+    protected void pageRead(Page page) {
+        freeSpace.update(page.getId().getPageNumber(), ((PaxPage) page).getNumEmptySlots() != 0);
+    }
+
+    /**
+     * Insert t into a page the free-space map says has room, the same way
+     * {@link HeapFile#insertTuple} does.
+     */
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        int num;
+        while ((num = freeSpace.pageFor(tid, numPages())) >= 0) {
+            HeapPageId pid = new HeapPageId(getId(), num);
+            boolean held = bufferPool.holdsLock(tid, pid);
+            PaxPage page = (PaxPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
+            if (page.getNumEmptySlots() != 0) {
+                page.insertTuple(t);
+                freeSpace.update(num, page.getNumEmptySlots() != 0);
+                return new ArrayList<>(Collections.singletonList(page));
+            }
+            freeSpace.update(num, false);
+            if (!held) {
+                bufferPool.unsafeReleasePage(tid, pid);
+            }
+        }
+
+        int newPageNo;
+        synchronized (this) {
+            newPageNo = numPages();
+            channel.write(PaxPage.createEmptyPageData(), (long) newPageNo * BufferPool.getPageSize());
+        }
+        freeSpace.setTarget(tid, newPageNo);
+        HeapPageId pid = new HeapPageId(getId(), newPageNo);
+        PaxPage page = (PaxPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
+        page.insertTuple(t);
+        freeSpace.update(newPageNo, page.getNumEmptySlots() != 0);
+        return new ArrayList<>(Collections.singletonList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        PageId pid = t.getRecordId().getPageId();
+        if (pid.getTableId() != getId() || pid.getPageNumber() < 0 || pid.getPageNumber() >= numPages()) {
+            throw new DbException("Tuple has a invalid page num");
+        }
+        PaxPage page = (PaxPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        freeSpace.update(pid.getPageNumber(), true);
+        return new ArrayList<>(Collections.singletonList(page));
+    }
+
+    /**
+     * Decodes only the given fields of each tuple and leaves the others
+     * null, see {@link DbFile#iterator(TransactionId, boolean, int[])}.
+     */
+    @Override
+    public void transactionComplete(TransactionId tid, boolean commit) {
+        freeSpace.transactionComplete(tid, commit);
+    }
+
+    @Override
+    protected Iterator<Tuple> tuples(Page page, int[] fields) {
+        return ((PaxPage) page).iterator(fields);
+    }
+}
@@ -0,0 +1,297 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Each instance of PaxPage stores data for one page of a PaxFile. It holds
+ * fixed-width slots like a HeapPage, but lays them out column by
+ * column instead of row by row, so a scan that only needs some of the
+ * columns reads and decodes only the bytes of those columns.
+ * <p>
+ * The page starts with the same header bitmap as a HeapPage. It is followed
+ * by one minipage per column, in column order: the minipage of column j
+ * holds the value of column j for every slot, each taking
+ * <code>td.getFieldType(j).getLen()</code> bytes, in the same format as
+ * on a HeapPage. The last 8 bytes of the page hold its pageLSN, see
+ * {@link Page#getLSN()}, so there are as many slots as fit into the rest
+ * of the page.
+ *
+ * @see PaxFile
+ */
+public class PaxPage implements Page {
+
+    static final int LSN_SIZE = 8;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    final int numSlots;
+    private final int headerSize;
+    // 每一列minipage的起始位置
+    private final int[] columnStart;
+    // 页面内容，由this保护
+    private final byte[] data;
+    private final ByteBuffer buf;
+
+    // 上次setBeforeImage之后第一次修改前拷贝的页面内容，为null时before-image
+    // 就是data，由this保护；赋值之后不会再被写
+    private byte[] oldData;
+
+    private volatile TransactionId tid;
+
+    /**
+     * Create a PaxPage from a set of bytes of data read from disk, in the
+     * format described above. A page of all zeroes is an empty page.
+     *
+     * @see BufferPool#getPageSize()
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = ((BufferPool.getPageSize() - LSN_SIZE) * 8) / (td.getSize() * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+        this.columnStart = new int[td.numFields()];
+        int offset = headerSize;
+        for (int j = 0; j < td.numFields(); j++) {
+            columnStart[j] = offset;
+            offset += numSlots * td.getFieldType(j).getLen();
+        }
+        this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+        this.buf = ByteBuffer.wrap(this.data);
+    }
+
+    /** @return the bytes of an empty page */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /** @return the number of slots on this page, used or not */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /** @return true if slot i holds a tuple */
+    public synchronized boolean isSlotUsed(int i) {
+        return i >= 0 && i < numSlots && (data[i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    private void markSlotUsed(int i, boolean used) {
+        if (used) {
+            data[i / 8] |= (byte) (1 << (i % 8));
+        } else {
+            data[i / 8] &= (byte) ~(1 << (i % 8));
+        }
+    }
+
+    /** @return the number of empty slots on this page */
+    public synchronized int getNumEmptySlots() {
+        int used = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (isSlotUsed(i)) {
+                used++;
+            }
+        }
+        return numSlots - used;
+    }
+
+    /**
+     * Adds the specified tuple to the first empty slot of the page; the tuple
+     * is updated to reflect that it is now stored on this page.
+     *
+     * @throws DbException if the page is full or the TupleDesc does not
+     *         match
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("tupledesc is mismatch, insert failed");
+        }
+        int slot = 0;
+        while (slot < numSlots && isSlotUsed(slot)) {
+            slot++;
+        }
+        if (slot == numSlots) {
+            throw new DbException("page is full, insert failed");
+        }
+        captureBeforeImage();
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            int offset = columnStart[j] + slot * len;
+            Arrays.fill(data, offset, offset + len, (byte) 0);
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                String s = ((StringField) t.getField(j)).getValue();
+                int strLen = Math.min(s.length(), Type.STRING_LEN);
+                buf.putInt(offset, strLen);
+                for (int k = 0; k < strLen; k++) {
+                    data[offset + 4 + k] = (byte) s.charAt(k);
+                }
+            } else {
+                buf.putInt(offset, ((IntField) t.getField(j)).getValue());
+            }
+        }
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from the page; its values are cleared.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        if (!pid.equals(t.getRecordId().getPageId())) {
+            throw new DbException("tuple is not on this page");
+        }
+        int slot = t.getRecordId().getTupleNumber();
+        if (!isSlotUsed(slot)) {
+            throw new DbException("tuple slot is already empty");
+        }
+        captureBeforeImage();
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            Arrays.fill(data, columnStart[j] + slot * len, columnStart[j] + (slot + 1) * len, (byte) 0);
+        }
+        markSlotUsed(slot, false);
+    }
+
+    /** @return the tuple in slot i with all of its fields, or null if the slot is empty */
+    public Tuple getTuple(int i) {
+        return getTuple(i, null);
+    }
+
+    /**
+     * @param fields the indexes of the fields to decode, or null for all of
+     *               them; the other fields of the tuple are left null
+     * @return the tuple in slot i, or null if the slot is empty
+     */
+    public synchronized Tuple getTuple(int i, int[] fields) {
+        if (!isSlotUsed(i)) {
+            return null;
+        }
+        Tuple t = new Tuple(td);
+        if (fields == null) {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.setField(j, getField(i, j));
+            }
+        } else {
+            for (int j : fields) {
+                t.setField(j, getField(i, j));
+            }
+        }
+        t.setRecordId(new RecordId(pid, i));
+        return t;
+    }
+
+    private Field getField(int i, int j) {
+        Type type = td.getFieldType(j);
+        return type.parse(buf, columnStart[j] + i * type.getLen());
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on
+     *         this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return iterator(null);
+    }
+
+    /**
+     * @param fields the indexes of the fields to decode, or null for all of
+     *               them; the other fields of the returned tuples are null
+     * @return an iterator over all tuples on this page, which decodes each
+     *         tuple only when next() gets to it (calling remove on this
+     *         iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator(int[] fields) {
+        return new Iterator<Tuple>() {
+            private int slot = -1;
+            private Tuple next = advance();
+
+            private Tuple advance() {
+                Tuple t = null;
+                while (t == null && ++slot < numSlots) {
+                    t = getTuple(slot, fields);
+                }
+                return t;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Tuple next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = next;
+                next = advance();
+                return t;
+            }
+        };
+    }
+
+    public synchronized byte[] getPageData() {
+        return data.clone();
+    }
+
+    public synchronized long getLSN() {
+        return buf.getLong(data.length - LSN_SIZE);
+    }
+
+    // LSN不是事务的修改，不用留before-image
+    public synchronized void setLSN(long lsn) {
+        buf.putLong(data.length - LSN_SIZE, lsn);
+    }
+
+    /** Keep the current contents as the before-image, if that has not been done since the last setBeforeImage */
+    private void captureBeforeImage() {
+        if (oldData == null) {
+            oldData = data.clone();
+        }
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public synchronized PaxPage getBeforeImage() {
+        try {
+            return new PaxPage(pid, oldData != null ? oldData : data);
+        } catch (IOException e) {
+            // 之前已经解析过，不会发生
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized byte[] getBeforeImageData() {
+        return oldData != null ? oldData : data.clone();
+    }
+
+    /**
+     * Make the current contents the before-image. Nothing is copied until
+     * the page is modified again.
+     */
+    public synchronized void setBeforeImage() {
+        oldData = null;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.tid = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return tid;
+    }
+}
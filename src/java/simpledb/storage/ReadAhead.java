@@ -0,0 +1,50 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+/**
+ * Sequential read-ahead for one scan over a HeapFile.
+ * <p>
+ * The scan reports every page it moves to. As long as it keeps moving to the
+ * next page, the window of pages prefetched ahead of it doubles, up to
+ * {@link BufferPool#getMaxReadAhead()}; any other jump starts over with no
+ * window. Pages are handed to {@link BufferPool#prefetchPage} and each one
+ * is asked for only once.
+ */
+class ReadAhead {
+
+    private final int tableId;
+
+    private int lastPage = -1;
+    private int window = 0;
+    // 已经请求预读到的page
+    private int prefetchedUpTo = -1;
+
+    ReadAhead(int tableId) {
+        this.tableId = tableId;
+    }
+
+    /**
+     * Record that the scan moved to pageNo, and prefetch the pages in the
+     * window after it.
+     *
+     * @param numPages the number of pages in the file
+     */
+    void accessed(int pageNo, int numPages) {
+        BufferPool bufferPool = Database.getBufferPool();
+        int max = bufferPool.getMaxReadAhead();
+        if (pageNo == lastPage + 1) {
+            window = Math.min(window == 0 ? 1 : window * 2, max);
+        } else {
+            window = 0;
+            prefetchedUpTo = pageNo;
+        }
+        lastPage = pageNo;
+
+        int end = Math.min(pageNo + window, numPages - 1);
+        for (int p = Math.max(prefetchedUpTo, pageNo) + 1; p <= end; p++) {
+            bufferPool.prefetchPage(new HeapPageId(tableId, p));
+        }
+        prefetchedUpTo = Math.max(prefetchedUpTo, end);
+    }
+}
@@ -0,0 +1,128 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The single FileChannel a DbFile reads and writes its pages through.
+ * <p>
+ * Reads and writes are positional, so any number of threads can use the
+ * channel at once without seeking. The channel is opened on first use and
+ * stays open until {@link #close()}; using it after that opens it again.
+ * Interrupting a thread in the middle of a read or write closes a
+ * FileChannel for everybody, so other threads that run into the closed
+ * channel just reopen it and retry.
+ */
+public class SharedFileChannel {
+
+    private interface Op<T> {
+        T run(FileChannel channel) throws IOException;
+    }
+
+    private final File file;
+
+    // 由this保护
+    private FileChannel channel;
+
+    public SharedFileChannel(File file) {
+        this.file = file;
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+        return channel;
+    }
+
+    private <T> T retry(Op<T> op) throws IOException {
+        while (true) {
+            FileChannel ch = channel();
+            try {
+                return op.run(ch);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // 别的线程被interrupt或者调用了close，重新打开再试
+            }
+        }
+    }
+
+    /**
+     * Read up to buf.length bytes starting at position. Bytes past the end
+     * of the file are left as they are.
+     *
+     * @return the number of bytes read, 0 if position is past the end of the file
+     */
+    public int read(byte[] buf, long position) throws IOException {
+        return read(ByteBuffer.wrap(buf), position);
+    }
+
+    /**
+     * Read up to buf.remaining() bytes starting at position into buf, which
+     * may be a direct buffer. Bytes past the end of the file are left as
+     * they are; the position of buf is not changed.
+     *
+     * @return the number of bytes read, 0 if position is past the end of the file
+     */
+    public int read(ByteBuffer buf, long position) throws IOException {
+        return retry(ch -> {
+            ByteBuffer bb = buf.duplicate();
+            int start = bb.position();
+            while (bb.hasRemaining()) {
+                if (ch.read(bb, position + bb.position() - start) < 0) {
+                    break;
+                }
+            }
+            return bb.position() - start;
+        });
+    }
+
+    /** Write all of data starting at position, growing the file if needed */
+    public void write(byte[] data, long position) throws IOException {
+        retry(ch -> {
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            while (bb.hasRemaining()) {
+                ch.write(bb, position + bb.position());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Map size bytes of the file starting at position read-only into memory.
+     * The region must lie within the file, a mapping past its end would
+     * grow the file. The mapping stays valid after the channel is closed.
+     */
+    public MappedByteBuffer map(long position, long size) throws IOException {
+        return retry(ch -> ch.map(FileChannel.MapMode.READ_ONLY, position, size));
+    }
+
+    /** Force everything written through the channel to disk */
+    public void force() throws IOException {
+        retry(ch -> {
+            ch.force(false);
+            return null;
+        });
+    }
+
+    /** @return the current size of the file in bytes */
+    public long size() throws IOException {
+        return retry(FileChannel::size);
+    }
+
+    /** Close the channel, if it is open */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
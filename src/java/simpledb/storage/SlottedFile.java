@@ -0,0 +1,129 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlottedFile is a DbFile that stores a collection of tuples in no
+ * particular order on SlottedPages, so records take only the bytes their
+ * values need instead of the fixed width of a HeapPage slot. Tables of short
+ * strings fit many more tuples on a page this way.
+ * <p>
+ * A table is stored this way when its catalog entry ends in
+ * <code>slotted</code>, see {@link simpledb.common.Catalog#loadSchema}.
+ *
+ * @see SlottedPage
+ */
+public class SlottedFile extends AbstractDbFile {
+
+    // 每一页剩下的字节数，没有记录的page还不知道，由自己保护
+    private final Map<Integer, Integer> freeBytes = new HashMap<>();
+
+    /**
+     * Constructs a slotted file backed by the specified file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this
+     *            file.
+     */
+    public SlottedFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    // see DbFile.java for javadocs
+    public Page createPage(PageId pid, byte[] data) throws IOException {
+        return new SlottedPage((HeapPageId) pid, data);
+    }
+
+    @Override
+    protected void pageRead(Page page) {
+        recordFreeSpace((SlottedPage) page);
+    }
+
+    private void recordFreeSpace(SlottedPage page) {
+        synchronized (freeBytes) {
+            freeBytes.put(page.getId().getPageNumber(), page.getFreeSpace());
+        }
+    }
+
+    /** @return the first page from from on that may have room for need bytes, or -1 */
+    private int candidatePage(int from, int need) {
+        int numPages = numPages();
+        synchronized (freeBytes) {
+            for (int p = from; p < numPages; p++) {
+                Integer free = freeBytes.get(p);
+                if (free == null || free >= need) {
+                    return p;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Insert t into the first page that has room for it. Pages whose free
+     * space is known to be too small are skipped without being locked, and
+     * a page that turns out to be too full is unlocked again unless tid held
+     * its lock before.
+     *
+     * @throws DbException if t does not fit on an empty page
+     */
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        int size = SlottedPage.recordSize(t);
+        if (size + SlottedPage.SLOT_SIZE + SlottedPage.HEADER_SIZE > BufferPool.getPageSize()) {
+            throw new DbException("tuple is larger than a page");
+        }
+        BufferPool bufferPool = Database.getBufferPool();
+        int need = size + SlottedPage.SLOT_SIZE;
+        for (int num = candidatePage(0, need); num >= 0; num = candidatePage(num + 1, need)) {
+            HeapPageId pid = new HeapPageId(getId(), num);
+            boolean held = bufferPool.holdsLock(tid, pid);
+            SlottedPage page = (SlottedPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
+            if (page.fits(size)) {
+                page.insertTuple(t);
+                recordFreeSpace(page);
+                return new ArrayList<>(Collections.singletonList(page));
+            }
+            recordFreeSpace(page);
+            if (!held) {
+                bufferPool.unsafeReleasePage(tid, pid);
+            }
+        }
+
+        int newPageNo;
+        synchronized (this) {
+            newPageNo = numPages();
+            channel.write(SlottedPage.createEmptyPageData(), (long) newPageNo * BufferPool.getPageSize());
+        }
+        HeapPageId pid = new HeapPageId(getId(), newPageNo);
+        SlottedPage page = (SlottedPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
+        page.insertTuple(t);
+        recordFreeSpace(page);
+        return new ArrayList<>(Collections.singletonList(page));
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        PageId pid = t.getRecordId().getPageId();
+        if (pid.getTableId() != getId() || pid.getPageNumber() < 0 || pid.getPageNumber() >= numPages()) {
+            throw new DbException("Tuple has a invalid page num");
+        }
+        SlottedPage page = (SlottedPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        recordFreeSpace(page);
+        return new ArrayList<>(Collections.singletonList(page));
+    }
+
+    @Override
+    protected Iterator<Tuple> tuples(Page page, int[] fields) {
+        return ((SlottedPage) page).iterator();
+    }
+}
@@ -0,0 +1,324 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Each instance of SlottedPage stores data for one page of a SlottedFile.
+ * Unlike HeapPage, records have variable length, so a string only takes
+ * the bytes it actually uses.
+ * <p>
+ * The page starts with two ints, the number of slots and the offset of the
+ * first record, and a long, the pageLSN of the page (see
+ * {@link Page#getLSN()}). The slot directory follows: an (offset, length)
+ * pair of ints per slot, where length 0 marks an empty slot. Records are
+ * packed at the end of the page and grow towards the directory. A record
+ * is its fields one after the other; an int takes 4 bytes, a string a 2
+ * byte length followed by its bytes.
+ * <p>
+ * Deleting a record moves the records in front of it up, so the free space
+ * is always the single gap between the directory and the records. Slot
+ * numbers, and so RecordIds, stay the same when records move.
+ *
+ * @see SlottedFile
+ */
+public class SlottedPage implements Page {
+
+    static final int HEADER_SIZE = 16;
+    private static final int LSN_OFFSET = 8;
+    static final int SLOT_SIZE = 8;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    // 页面内容，由this保护
+    private final byte[] data;
+    private final ByteBuffer buf;
+
+    // 上次setBeforeImage之后第一次修改前拷贝的页面内容，为null时before-image
+    // 就是data，由this保护；赋值之后不会再被写
+    private byte[] oldData;
+
+    private volatile TransactionId tid;
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk, in the
+     * format described above. A page of all zeroes is an empty page.
+     *
+     * @see BufferPool#getPageSize()
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+        this.buf = ByteBuffer.wrap(this.data);
+    }
+
+    /** @return the bytes of an empty page */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    /**
+     * @return the number of bytes t takes on a SlottedPage, not counting its
+     *         slot
+     */
+    public static int recordSize(Tuple t) {
+        TupleDesc td = t.getTupleDesc();
+        int size = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                size += 2 + Math.min(((StringField) t.getField(j)).getValue().length(), Type.STRING_LEN);
+            } else {
+                size += td.getFieldType(j).getLen();
+            }
+        }
+        return size;
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    /** @return the number of slots in the directory, used or not */
+    public synchronized int getNumSlots() {
+        return buf.getInt(0);
+    }
+
+    private int recordsStart() {
+        int start = buf.getInt(4);
+        // 全0的空page
+        return start == 0 ? data.length : start;
+    }
+
+    private int slotOffset(int i) {
+        return buf.getInt(HEADER_SIZE + i * SLOT_SIZE);
+    }
+
+    private int slotLength(int i) {
+        return buf.getInt(HEADER_SIZE + i * SLOT_SIZE + 4);
+    }
+
+    private void setSlot(int i, int offset, int length) {
+        buf.putInt(HEADER_SIZE + i * SLOT_SIZE, offset);
+        buf.putInt(HEADER_SIZE + i * SLOT_SIZE + 4, length);
+    }
+
+    /** @return true if slot i holds a record */
+    public synchronized boolean isSlotUsed(int i) {
+        return i >= 0 && i < getNumSlots() && slotLength(i) > 0;
+    }
+
+    /** @return the number of bytes between the slot directory and the records */
+    public synchronized int getFreeSpace() {
+        return recordsStart() - (HEADER_SIZE + getNumSlots() * SLOT_SIZE);
+    }
+
+    /** @return true if a record of recordSize bytes fits on this page */
+    public synchronized boolean fits(int recordSize) {
+        return recordSize + (firstEmptySlot() < getNumSlots() ? 0 : SLOT_SIZE) <= getFreeSpace();
+    }
+
+    private int firstEmptySlot() {
+        int n = getNumSlots();
+        for (int i = 0; i < n; i++) {
+            if (slotLength(i) == 0) {
+                return i;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Adds the specified tuple to the page, reusing an empty slot if there is
+     * one; the tuple is updated to reflect that it is now stored on this page.
+     *
+     * @throws DbException if the tuple does not fit or its TupleDesc does not
+     *         match
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td)) {
+            throw new DbException("tupledesc is mismatch, insert failed");
+        }
+        int size = recordSize(t);
+        if (!fits(size)) {
+            throw new DbException("page is full, insert failed");
+        }
+        captureBeforeImage();
+        int slot = firstEmptySlot();
+        if (slot == getNumSlots()) {
+            buf.putInt(0, slot + 1);
+        }
+        int offset = recordsStart() - size;
+        for (int j = 0; j < td.numFields(); j++) {
+            Field f = t.getField(j);
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                String s = ((StringField) f).getValue();
+                int len = Math.min(s.length(), Type.STRING_LEN);
+                buf.putShort(offset, (short) len);
+                offset += 2;
+                for (int k = 0; k < len; k++) {
+                    data[offset++] = (byte) s.charAt(k);
+                }
+            } else {
+                buf.putInt(offset, ((IntField) f).getValue());
+                offset += 4;
+            }
+        }
+        offset -= size;
+        setSlot(slot, offset, size);
+        buf.putInt(4, offset);
+        t.setRecordId(new RecordId(pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from the page and close the gap it leaves by
+     * moving the records in front of it.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        if (!pid.equals(t.getRecordId().getPageId())) {
+            throw new DbException("tuple is not on this page");
+        }
+        int slot = t.getRecordId().getTupleNumber();
+        if (!isSlotUsed(slot)) {
+            throw new DbException("tuple slot is already empty");
+        }
+        captureBeforeImage();
+        int start = recordsStart();
+        int offset = slotOffset(slot);
+        int length = slotLength(slot);
+        System.arraycopy(data, start, data, start + length, offset - start);
+        Arrays.fill(data, start, start + length, (byte) 0);
+
+        int n = getNumSlots();
+        for (int i = 0; i < n; i++) {
+            if (slotLength(i) > 0 && slotOffset(i) < offset) {
+                setSlot(i, slotOffset(i) + length, slotLength(i));
+            }
+        }
+        setSlot(slot, 0, 0);
+        // 末尾的空槽可以去掉
+        while (n > 0 && slotLength(n - 1) == 0) {
+            n--;
+        }
+        buf.putInt(0, n);
+        buf.putInt(4, n == 0 ? 0 : start + length);
+    }
+
+    /** @return the tuple in slot i, or null if the slot is empty */
+    public synchronized Tuple getTuple(int i) {
+        if (!isSlotUsed(i)) {
+            return null;
+        }
+        Tuple t = new Tuple(td);
+        int offset = slotOffset(i);
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j) == Type.STRING_TYPE) {
+                int len = buf.getShort(offset);
+                t.setField(j, new StringField(new String(data, offset + 2, len), Type.STRING_LEN));
+                offset += 2 + len;
+            } else {
+                t.setField(j, new IntField(buf.getInt(offset)));
+                offset += 4;
+            }
+        }
+        t.setRecordId(new RecordId(pid, i));
+        return t;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page, which decodes each
+     *         tuple only when next() gets to it (calling remove on this
+     *         iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            private int slot = -1;
+            private Tuple next = advance();
+
+            private Tuple advance() {
+                Tuple t = null;
+                while (t == null && ++slot < getNumSlots()) {
+                    t = getTuple(slot);
+                }
+                return t;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Tuple next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = next;
+                next = advance();
+                return t;
+            }
+        };
+    }
+
+    public synchronized byte[] getPageData() {
+        return data.clone();
+    }
+
+    public synchronized long getLSN() {
+        return buf.getLong(LSN_OFFSET);
+    }
+
+    // LSN不是事务的修改，不用留before-image
+    public synchronized void setLSN(long lsn) {
+        buf.putLong(LSN_OFFSET, lsn);
+    }
+
+    /** Keep the current contents as the before-image, if that has not been done since the last setBeforeImage */
+    private void captureBeforeImage() {
+        if (oldData == null) {
+            oldData = data.clone();
+        }
+    }
+
+    /** Return a view of this page before it was modified
+        -- used by recovery */
+    public synchronized SlottedPage getBeforeImage() {
+        try {
+            return new SlottedPage(pid, oldData != null ? oldData : data);
+        } catch (IOException e) {
+            // 之前已经解析过，不会发生
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized byte[] getBeforeImageData() {
+        return oldData != null ? oldData : data.clone();
+    }
+
+    /**
+     * Make the current contents the before-image. Nothing is copied until
+     * the page is modified again.
+     */
+    public synchronized void setBeforeImage() {
+        oldData = null;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.tid = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return tid;
+    }
+}
@@ -0,0 +1,188 @@
+package simpledb.storage.evict;
+
+import simpledb.storage.PageId;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) eviction.
+ * <p>
+ * Every tracked page sits in a frame slot with a reference bit. A hit on a
+ * tracked page only sets its bit, without taking any lock. To pick a victim
+ * the clock hand sweeps the slots, clearing set bits as it passes, and
+ * stops at the first page whose bit is clear and that the BufferPool is
+ * willing to evict. If every unreferenced page is refused (e.g. all of them
+ * are dirty) the first one the hand passed is returned anyway.
+ * <p>
+ * A page first tracked through {@link #modifyDataOnce} starts with its bit
+ * clear, so pages brought in by a scan are the first to go unless they are
+ * hit again, e.g. by the next scan of the inner table of a join. A page read
+ * ahead with {@link #modifyDataPrefetched} starts with its bit clear too,
+ * and the scan reaching it does not set it either.
+ */
+public class ClockEvict implements EvictStrategy {
+
+    private final Map<PageId, Integer> slotOf = new ConcurrentHashMap<>();
+
+    private final Predicate<PageId> evictable;
+
+    // 引用位的值：没被引用、被引用过、预读进来还没用过
+    private static final int CLEAR = 0;
+    private static final int REFERENCED = 1;
+    private static final int PREFETCHED = 2;
+
+    // 以下字段由this保护，只有referenced可以不加锁地置位
+    private PageId[] frames;
+    private volatile AtomicIntegerArray referenced;
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private int hand;
+
+    public ClockEvict(int numFrames) {
+        this(numFrames, pageId -> true);
+    }
+
+    /**
+     * @param numFrames number of slots to start with; grows if more pages
+     *                  are tracked at once
+     * @param evictable pages for which this returns false are only evicted
+     *                  when no other unreferenced page is left
+     */
+    public ClockEvict(int numFrames, Predicate<PageId> evictable) {
+        this.evictable = evictable;
+        int n = Math.max(numFrames, 1);
+        frames = new PageId[n];
+        referenced = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++) {
+            freeSlots.addLast(i);
+        }
+    }
+
+    @Override
+    public void modifyData(PageId pageId) {
+        Integer slot = slotOf.get(pageId);
+        if (slot != null) {
+            referenced.set(slot, REFERENCED);
+            return;
+        }
+        synchronized (this) {
+            // track可能换掉referenced数组，要先拿到slot
+            slot = track(pageId);
+            referenced.set(slot, REFERENCED);
+        }
+    }
+
+    @Override
+    public void modifyDataOnce(PageId pageId) {
+        Integer slot = slotOf.get(pageId);
+        if (slot != null) {
+            // 扫描第一次碰到预读的page不算，再有一次就算重复使用了
+            if (!referenced.compareAndSet(slot, PREFETCHED, CLEAR)) {
+                referenced.set(slot, REFERENCED);
+            }
+            return;
+        }
+        synchronized (this) {
+            track(pageId);
+        }
+    }
+
+    @Override
+    public void modifyDataPrefetched(PageId pageId) {
+        if (slotOf.containsKey(pageId)) {
+            return;
+        }
+        synchronized (this) {
+            if (!slotOf.containsKey(pageId)) {
+                referenced.set(track(pageId), PREFETCHED);
+            }
+        }
+    }
+
+    /** Return the slot of pageId, giving it a free one if it is not tracked yet */
+    private int track(PageId pageId) {
+        Integer slot = slotOf.get(pageId);
+        if (slot == null) {
+            if (freeSlots.isEmpty()) {
+                grow();
+            }
+            slot = freeSlots.pollFirst();
+            frames[slot] = pageId;
+            slotOf.put(pageId, slot);
+        }
+        return slot;
+    }
+
+    @Override
+    public synchronized void removeData(PageId pageId) {
+        Integer slot = slotOf.remove(pageId);
+        if (slot != null) {
+            free(slot);
+        }
+    }
+
+    @Override
+    public synchronized PageId getEvictPageId() {
+        if (slotOf.isEmpty()) {
+            return null;
+        }
+        int n = frames.length;
+        int fallback = -1;
+        // 第一圈清掉引用位，第二圈一定能碰到没被引用的page
+        for (int i = 0; i < 2 * n; i++) {
+            int slot = hand;
+            hand = (hand + 1) % n;
+            PageId pageId = frames[slot];
+            if (pageId == null || referenced.getAndSet(slot, CLEAR) == REFERENCED) {
+                continue;
+            }
+            if (evictable.test(pageId)) {
+                return take(slot);
+            }
+            if (fallback < 0) {
+                fallback = slot;
+            }
+        }
+        if (fallback < 0) {
+            // 扫描期间一直有命中，直接取指针后的第一个page
+            while (frames[hand] == null) {
+                hand = (hand + 1) % n;
+            }
+            fallback = hand;
+        }
+        return take(fallback);
+    }
+
+    private PageId take(int slot) {
+        PageId pageId = frames[slot];
+        slotOf.remove(pageId);
+        free(slot);
+        return pageId;
+    }
+
+    private void free(int slot) {
+        frames[slot] = null;
+        referenced.set(slot, CLEAR);
+        freeSlots.addLast(slot);
+    }
+
+    /** Double the number of slots, keeping the reference bits already set */
+    private void grow() {
+        int n = frames.length;
+        PageId[] newFrames = new PageId[n * 2];
+        System.arraycopy(frames, 0, newFrames, 0, n);
+        AtomicIntegerArray newReferenced = new AtomicIntegerArray(n * 2);
+        for (int i = 0; i < n; i++) {
+            newReferenced.set(i, referenced.get(i));
+        }
+        for (int i = n; i < n * 2; i++) {
+            freeSlots.addLast(i);
+        }
+        frames = newFrames;
+        referenced = newReferenced;
+    }
+}
@@ -0,0 +1,39 @@
+package simpledb.storage.evict;
+
+import simpledb.storage.PageId;
+
+import java.util.function.Predicate;
+
+/**
+ * The eviction strategies a BufferPool can be created with.
+ */
+public enum EvictPolicy {
+    /** Evict in the order pages were first accessed */
+    FIFO,
+    /** Evict the least recently used page */
+    LRU,
+    /** Second chance, see {@link ClockEvict} */
+    CLOCK,
+    /** Scan resistant 2Q, see {@link TwoQueueEvict} */
+    TWO_QUEUE;
+
+    /**
+     * @param numFrames number of frames in the BufferPool
+     * @param evictable pages for which this returns false should only be
+     *                  evicted when no other page is left; FIFO and LRU
+     *                  do not look at it
+     * @return a new strategy of this kind
+     */
+    public EvictStrategy create(int numFrames, Predicate<PageId> evictable) {
+        switch (this) {
+            case FIFO:
+                return new FIFOEvict();
+            case LRU:
+                return new LRUEvict();
+            case TWO_QUEUE:
+                return new TwoQueueEvict(numFrames, evictable);
+            default:
+                return new ClockEvict(numFrames, evictable);
+        }
+    }
+}
@@ -3,9 +3,40 @@ package simpledb.storage.evict;
 import simpledb.storage.Page;
 import simpledb.storage.PageId;
 
+/**
+ * Chooses which page the BufferPool evicts next. The BufferPool calls in
+ * from many threads at once, so implementations must be thread-safe.
+ */
 public interface EvictStrategy {
 
+    /** Record an access to pageId */
     void modifyData(PageId pageId);
 
+    /**
+     * Record an access to pageId by an operation that will not come back to
+     * it soon, e.g. a sequential scan. Strategies that can tell such pages
+     * apart should evict them before pages that were accessed normally.
+     */
+    default void modifyDataOnce(PageId pageId) {
+        modifyData(pageId);
+    }
+
+    /**
+     * Record that pageId was read ahead for a scan that has not asked for
+     * it yet. The first use-once access after this is the scan reaching the
+     * page and should not count as the page being used again.
+     */
+    default void modifyDataPrefetched(PageId pageId) {
+        modifyDataOnce(pageId);
+    }
+
+    /** Forget pageId, it is no longer in the BufferPool */
+    void removeData(PageId pageId);
+
+    /**
+     * Remove and return the page to evict next.
+     *
+     * @return the page to evict, or null if no page is tracked
+     */
     PageId getEvictPageId();
 }
@@ -16,14 +16,21 @@ public class FIFOEvict implements EvictStrategy{
     }
 
     @Override
-    public void modifyData(PageId pageId) {
+    public synchronized void modifyData(PageId pageId) {
         if (set.contains(pageId)) return ;
         queue.offer(pageId);
         set.add(pageId);
     }
 
     @Override
-    public PageId getEvictPageId() {
+    public synchronized void removeData(PageId pageId) {
+        if (set.remove(pageId)) {
+            queue.remove(pageId);
+        }
+    }
+
+    @Override
+    public synchronized PageId getEvictPageId() {
         PageId peek = queue.poll();
         set.remove(peek);
 //        System.out.println("evict " + peek.getPageNumber());
@@ -20,7 +20,7 @@ public class LRUEvict implements EvictStrategy{
     }
 
     @Override
-    public void modifyData(PageId pageId) {
+    public synchronized void modifyData(PageId pageId) {
         if(hashMap.containsKey(pageId)){
             Node node = hashMap.get(pageId);
             moveToHead(node);
@@ -31,7 +31,18 @@ public class LRUEvict implements EvictStrategy{
         }
     }
     @Override
-    public PageId getEvictPageId() {
+    public synchronized void removeData(PageId pageId) {
+        Node node = hashMap.remove(pageId);
+        if (node != null) {
+            removeNode(node);
+        }
+    }
+
+    @Override
+    public synchronized PageId getEvictPageId() {
+        if (head.next == tail) {
+            return null;
+        }
         Node prev = tail.prev;
         hashMap.remove(prev.pageId);
         removeNode(prev);
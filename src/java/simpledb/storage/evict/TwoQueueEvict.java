@@ -0,0 +1,153 @@
+package simpledb.storage.evict;
+
+import simpledb.storage.PageId;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * 2Q eviction (Johnson and Shasha), resistant to sequential scans.
+ * <p>
+ * A page seen for the first time goes into the FIFO probation queue A1in,
+ * and further hits while it is there do not count: they are usually
+ * correlated references from the same operation. Pages evicted from A1in are
+ * remembered (by id only) in A1out, and a page that comes back while it is
+ * still remembered is hot, so it goes into the LRU queue Am. Victims come
+ * from A1in while it holds more than a quarter of the frames, otherwise from
+ * the least recently used end of Am.
+ * <p>
+ * Pages loaded with a use-once hint go into a separate FIFO that is emptied
+ * before A1in and Am, and are not remembered in A1out, so a large scan only
+ * ever competes with itself. A use-once page that is hit again moves on to
+ * A1in like any other page seen once. A page read ahead for a scan waits in
+ * the same FIFO, and the scan reaching it is not counted as a second hit.
+ */
+public class TwoQueueEvict implements EvictStrategy {
+
+    private final LinkedHashSet<PageId> useOnce = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<>();
+    // 预读进来、扫描还没碰过的page，都在useOnce里
+    private final Set<PageId> prefetched = new HashSet<>();
+
+    private final int kin;
+    private final int kout;
+    private final Predicate<PageId> evictable;
+
+    public TwoQueueEvict(int numFrames) {
+        this(numFrames, pageId -> true);
+    }
+
+    /**
+     * @param numFrames number of frames in the BufferPool
+     * @param evictable pages for which this returns false are only evicted
+     *                  when every other page is refused as well
+     */
+    public TwoQueueEvict(int numFrames, Predicate<PageId> evictable) {
+        this.kin = Math.max(numFrames / 4, 1);
+        this.kout = Math.max(numFrames / 2, 1);
+        this.evictable = evictable;
+    }
+
+    @Override
+    public synchronized void modifyData(PageId pageId) {
+        if (am.remove(pageId)) {
+            am.add(pageId);
+            return;
+        }
+        // A1in中的再次访问不算数
+        if (a1in.contains(pageId)) {
+            return;
+        }
+        if (a1out.remove(pageId)) {
+            am.add(pageId);
+        } else {
+            useOnce.remove(pageId);
+            prefetched.remove(pageId);
+            a1in.add(pageId);
+        }
+    }
+
+    @Override
+    public synchronized void modifyDataOnce(PageId pageId) {
+        // 扫描第一次碰到预读的page不算再次访问
+        if (prefetched.remove(pageId)) {
+            return;
+        }
+        if (!am.contains(pageId) && !a1in.contains(pageId) && !useOnce.contains(pageId)) {
+            useOnce.add(pageId);
+        } else {
+            modifyData(pageId);
+        }
+    }
+
+    @Override
+    public synchronized void modifyDataPrefetched(PageId pageId) {
+        if (!am.contains(pageId) && !a1in.contains(pageId) && !useOnce.contains(pageId)) {
+            useOnce.add(pageId);
+            prefetched.add(pageId);
+        }
+    }
+
+    @Override
+    public synchronized void removeData(PageId pageId) {
+        prefetched.remove(pageId);
+        if (!useOnce.remove(pageId) && !a1in.remove(pageId)) {
+            am.remove(pageId);
+        }
+    }
+
+    @Override
+    public synchronized PageId getEvictPageId() {
+        List<LinkedHashSet<PageId>> order = new ArrayList<>();
+        order.add(useOnce);
+        if (a1in.size() > kin || am.isEmpty()) {
+            order.add(a1in);
+            order.add(am);
+        } else {
+            order.add(am);
+            order.add(a1in);
+        }
+
+        PageId fallback = null;
+        for (LinkedHashSet<PageId> queue : order) {
+            for (PageId pageId : queue) {
+                if (evictable.test(pageId)) {
+                    return evict(queue, pageId);
+                }
+                if (fallback == null) {
+                    fallback = pageId;
+                }
+            }
+        }
+        if (fallback == null) {
+            return null;
+        }
+        for (LinkedHashSet<PageId> queue : order) {
+            if (queue.contains(fallback)) {
+                return evict(queue, fallback);
+            }
+        }
+        return null;
+    }
+
+    private PageId evict(LinkedHashSet<PageId> queue, PageId pageId) {
+        queue.remove(pageId);
+        prefetched.remove(pageId);
+        if (queue == a1in) {
+            a1out.add(pageId);
+            if (a1out.size() > kout) {
+                Iterator<PageId> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        return pageId;
+    }
+}
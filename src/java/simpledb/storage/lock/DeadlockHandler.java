@@ -0,0 +1,39 @@
+package simpledb.storage.lock;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.Set;
+
+/**
+ * Strategy used by LockManager to keep waiting requests from deadlocking,
+ * one implementation per {@link DeadlockPolicy}.
+ * <p>
+ * waitFor and stopWaiting are called while holding the monitor of the page
+ * the request is queued on, so implementations must not lock any PageLock.
+ * A request is aborted with {@link LockInfo#abort()}, which wakes up its
+ * waiting thread.
+ */
+interface DeadlockHandler {
+
+    /**
+     * Called whenever the set of transactions that request waits for is
+     * (re)computed, including right after it is queued.
+     */
+    void waitFor(LockInfo request, Set<TransactionId> blockers);
+
+    /**
+     * Called once request stops waiting, either granted or cancelled.
+     *
+     * @return false if the request had been aborted
+     */
+    boolean stopWaiting(LockInfo request);
+
+    /** Return true if tid has to abort before it may request another lock */
+    default boolean mustAbort(TransactionId tid) {
+        return false;
+    }
+
+    /** Forget about tid once it has committed or aborted */
+    default void transactionComplete(TransactionId tid) {
+    }
+}
@@ -0,0 +1,15 @@
+package simpledb.storage.lock;
+
+/**
+ * How the LockManager deals with deadlocks. Transaction ids are handed out
+ * by a monotonically increasing counter, so the timestamp based policies
+ * use TransactionId.getId() as the transaction's age: smaller is older.
+ */
+public enum DeadlockPolicy {
+    /** Let transactions wait and abort the youngest one on a waits-for cycle */
+    DETECTION,
+    /** An older requester waits for a younger holder, a younger requester aborts itself */
+    WAIT_DIE,
+    /** An older requester aborts (wounds) a younger holder, a younger requester waits */
+    WOUND_WAIT
+}
@@ -1,97 +1,278 @@
 package simpledb.storage.lock;
 
 import simpledb.common.Permissions;
-import simpledb.storage.Page;
 import simpledb.storage.PageId;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * LockManager hands out page-level shared / exclusive locks.
+ * <p>
+ * Every page has its own {@link PageLock} with a FIFO queue of waiting
+ * requests. A request that conflicts with the current holders (or with an
+ * earlier waiter) waits on the page's monitor and is only woken up when
+ * a lock on that page is released, so there is no sleep-and-retry polling
+ * and no single monitor shared by all pages.
+ * <p>
+ * Lock upgrades (shared to exclusive by the same transaction) are queued
+ * ahead of ordinary requests and granted as soon as the upgrading
+ * transaction is the only holder left.
+ * <p>
+ * How deadlocks are handled is chosen with a {@link DeadlockPolicy}. By
+ * default they are detected with a {@link WaitsForGraph}: whenever the queue
+ * or the holders of a page change, the edges of its waiters are refreshed
+ * and any cycle that appears aborts its youngest transaction.
+ * <p>
+ * The pages each transaction holds locks on are indexed by transaction, so
+ * completing a transaction only touches the pages it actually locked. A
+ * PageLock with no holders and no waiters is dropped from the map, so the
+ * map only grows with the pages that are currently locked.
+ */
 public class LockManager {
 
-    private Map<PageId, Map<TransactionId, LockInfo>> pageLockMap;
+    private final Map<PageId, PageLock> pageLockMap;
 
-    private Map<TransactionId, TidNode> tidMap;
+    // 每个事务当前持有锁的page
+    private final Map<TransactionId, Set<PageId>> lockedPages;
+
+    private final DeadlockHandler deadlockHandler;
 
     public LockManager(){
+        this(DeadlockPolicy.DETECTION);
+    }
+
+    public LockManager(DeadlockPolicy policy){
         pageLockMap = new ConcurrentHashMap<>();
-        tidMap = new ConcurrentHashMap<>();
+        lockedPages = new ConcurrentHashMap<>();
+        switch (policy) {
+            case WAIT_DIE:
+                deadlockHandler = new WaitDie();
+                break;
+            case WOUND_WAIT:
+                deadlockHandler = new WoundWait();
+                break;
+            default:
+                deadlockHandler = new WaitsForGraph();
+        }
     }
 
-    public synchronized boolean acquire(PageId pid, TransactionId tid, Permissions perm) throws TransactionAbortedException {
-        Map<TransactionId, LockInfo> locks = pageLockMap.getOrDefault(pid, new ConcurrentHashMap<TransactionId, LockInfo>());
+    /**
+     * Acquire a lock on the specified page, blocking until it is granted.
+     *
+     * @throws TransactionAbortedException if this transaction is chosen as
+     *         the victim of a deadlock (or has to die / was wounded, under
+     *         the timestamp based policies), or the waiting thread is
+     *         interrupted
+     */
+    public void acquire(PageId pid, TransactionId tid, Permissions perm) throws TransactionAbortedException {
+        LockType lockType = perm == Permissions.READ_ONLY ? LockType.SHARE : LockType.EXCLUSIVE;
+        if (deadlockHandler.mustAbort(tid)) {
+            throw new TransactionAbortedException();
+        }
+        while (true) {
+            PageLock pageLock = pageLockMap.computeIfAbsent(pid, k -> new PageLock());
+            synchronized (pageLock) {
+                // 拿到的PageLock可能刚被回收，重新从map中取
+                if (!pageLock.retired) {
+                    acquire(pageLock, pid, tid, perm, lockType);
+                    return;
+                }
+            }
+        }
+    }
 
-        Iterator<Map.Entry<TransactionId, LockInfo>> iterator = locks.entrySet().iterator();
+    /** Acquire a lock on a live PageLock. Must hold the pageLock monitor. */
+    private void acquire(PageLock pageLock, PageId pid, TransactionId tid, Permissions perm, LockType lockType)
+            throws TransactionAbortedException {
+        if (pageLock.isHeldBy(tid, lockType)) {
+            return;
+        }
+        LockInfo request = new LockInfo(pid, tid, perm);
+        if (pageLock.waiters.isEmpty() && pageLock.blockersOf(request).isEmpty()) {
+            grant(pageLock, pid, tid, lockType);
+            return;
+        }
 
-        while (iterator.hasNext()){
-            Map.Entry<TransactionId, LockInfo> next = iterator.next();
-            if (next.getKey().equals(tid)){
-                continue;
+        pageLock.enqueue(request);
+        boolean granted = false;
+        try {
+            updateWaits(pageLock);
+            while (!request.isAborted() && !pageLock.blockersOf(request).isEmpty()) {
+                pageLock.wait();
+            }
+            if (deadlockHandler.stopWaiting(request)) {
+                grant(pageLock, pid, tid, lockType);
+                granted = true;
             }
+        } catch (InterruptedException e) {
+            if (!request.isAborted()) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            pageLock.waiters.remove(request);
+            deadlockHandler.stopWaiting(request);
+            // 取消的请求可能挡住了队列后面的请求
+            if (!granted) {
+                pageLock.notifyAll();
+                retireIfUnused(pageLock, pid);
+            }
+            updateWaits(pageLock);
+        }
+        if (!granted) {
+            // 被选为死锁的牺牲者时，清掉检测线程发来的中断
+            if (request.isAborted()) {
+                Thread.interrupted();
+            }
+            throw new TransactionAbortedException();
+        }
+    }
 
-            if (next.getValue().getLockType() == LockType.EXCLUSIVE || perm == Permissions.READ_WRITE){
-                TidNode tidNow = tidMap.getOrDefault(tid, new TidNode(tid));
-                tidNow.next = tidMap.get(next.getValue().getTid());
-                checkCycle(new HashSet<TidNode>(), tidNow);
+    private void grant(PageLock pageLock, PageId pid, TransactionId tid, LockType lockType) {
+        pageLock.holders.put(tid, lockType);
+        lockedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
 
-                return false;
-            }
+    /**
+     * Drop pageLock from the map once nobody holds or waits for it. Must hold
+     * the pageLock monitor; acquire() retries on a retired PageLock, so a
+     * thread that looked it up just before it was dropped never uses it.
+     */
+    private void retireIfUnused(PageLock pageLock, PageId pid) {
+        if (pageLock.holders.isEmpty() && pageLock.waiters.isEmpty()) {
+            pageLock.retired = true;
+            pageLockMap.remove(pid, pageLock);
         }
-        locks.put(tid, new LockInfo(pid, tid, perm));
-        // 第一次访问时要写回
-        pageLockMap.put(pid, locks);
-        tidMap.put(tid, new TidNode(tid));
-        return true;
     }
 
-    // 如果有环路则抛出异常
-    private void checkCycle(HashSet<TidNode> visited, TidNode tidNode) throws TransactionAbortedException {
-        if(visited.contains(tidNode)){
-            throw new TransactionAbortedException();
+    /**
+     * Tell the deadlock handler what every request queued on pageLock is
+     * currently waiting for. Must hold the pageLock monitor, so the handler
+     * never sees stale blockers for this page.
+     */
+    private void updateWaits(PageLock pageLock) {
+        for (LockInfo waiter : pageLock.waiters) {
+            deadlockHandler.waitFor(waiter, pageLock.blockersOf(waiter));
         }
-        visited.add(tidNode);
-        if(tidNode.next != null){
-            checkCycle(visited, tidNode.next);
+    }
+
+    public void release(TransactionId tid, PageId pid){
+        PageLock pageLock = pageLockMap.get(pid);
+        if (pageLock == null) {
+            return;
+        }
+        synchronized (pageLock) {
+            if (pageLock.holders.remove(tid) != null) {
+                Set<PageId> pages = lockedPages.get(tid);
+                if (pages != null) {
+                    pages.remove(pid);
+                }
+                updateWaits(pageLock);
+                pageLock.notifyAll();
+                retireIfUnused(pageLock, pid);
+            }
         }
     }
 
-    public synchronized void release(TransactionId tid, PageId pid){
-        Map<TransactionId, LockInfo> locks = pageLockMap.getOrDefault(pid, new ConcurrentHashMap<TransactionId, LockInfo>());
+    public boolean holdsLock(TransactionId tid, PageId pid){
+        PageLock pageLock = pageLockMap.get(pid);
+        if (pageLock == null) {
+            return false;
+        }
+        synchronized (pageLock) {
+            return pageLock.holders.containsKey(tid);
+        }
+    }
 
-        if (locks.containsKey(tid)) {
-            locks.remove(tid);
+    public void completeTransaction(TransactionId tid){
+        Set<PageId> pages = lockedPages.remove(tid);
+        if (pages != null) {
+            for (PageId pageId : pages) {
+                release(tid, pageId);
+            }
         }
-        return ;
+        deadlockHandler.transactionComplete(tid);
     }
 
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid){
-        Map<TransactionId, LockInfo> locks = pageLockMap.getOrDefault(pid, new ConcurrentHashMap<TransactionId, LockInfo>());
+}
+
+/**
+ * Lock state of a single page: the transactions currently holding it and the
+ * FIFO queue of requests waiting for it. Guarded by the PageLock monitor,
+ * waiters wait() on it and releasing a lock wakes them up.
+ */
+class PageLock {
+
+    final Map<TransactionId, LockType> holders = new LinkedHashMap<>();
+    final LinkedList<LockInfo> waiters = new LinkedList<>();
 
-        return locks.containsKey(tid);
+    // 已从LockManager的map中移除，不能再使用
+    boolean retired = false;
+
+    /** Return true if tid already holds a lock at least as strong as lockType */
+    boolean isHeldBy(TransactionId tid, LockType lockType) {
+        LockType held = holders.get(tid);
+        return held == LockType.EXCLUSIVE || (held != null && lockType == LockType.SHARE);
     }
 
-    public synchronized void completeTransaction(TransactionId tid){
-        for (PageId pageId : pageLockMap.keySet()) {
-            release(tid, pageId);
+    /** Upgrades go ahead of every ordinary request, behind earlier upgrades */
+    void enqueue(LockInfo request) {
+        if (!holders.containsKey(request.getTid())) {
+            waiters.addLast(request);
+            return;
         }
-        tidMap.remove(tid);
-
+        ListIterator<LockInfo> iterator = waiters.listIterator();
+        while (iterator.hasNext()) {
+            if (!holders.containsKey(iterator.next().getTid())) {
+                iterator.previous();
+                break;
+            }
+        }
+        iterator.add(request);
     }
 
+    /**
+     * Return the transactions that currently prevent request from being
+     * granted: the conflicting holders and the conflicting requests queued
+     * ahead of it. An empty set means it can be granted right now.
+     */
+    Set<TransactionId> blockersOf(LockInfo request) {
+        TransactionId tid = request.getTid();
+        Set<TransactionId> blockers = new HashSet<>();
+        for (Map.Entry<TransactionId, LockType> entry : holders.entrySet()) {
+            if (!entry.getKey().equals(tid) && request.conflictsWith(entry.getValue())) {
+                blockers.add(entry.getKey());
+            }
+        }
+        for (LockInfo ahead : waiters) {
+            if (ahead == request) {
+                break;
+            }
+            if (!ahead.getTid().equals(tid) && request.conflictsWith(ahead.getLockType())) {
+                blockers.add(ahead.getTid());
+            }
+        }
+        return blockers;
+    }
 }
 
-
 class LockInfo{
 
     private PageId pid;
     private TransactionId tid;
     LockType lockType;
 
+    // 等待该锁的线程，被选为死锁牺牲者时由检测线程中断
+    final Thread waiter = Thread.currentThread();
+    private volatile boolean aborted = false;
+
     public LockInfo(PageId pid, TransactionId tid, Permissions perm) {
 
         this.pid = pid;
@@ -115,6 +296,23 @@ class LockInfo{
         return lockType;
     }
 
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /** Called by the DeadlockHandler when this request's transaction has to be aborted */
+    void abort() {
+        aborted = true;
+        if (waiter != Thread.currentThread()) {
+            waiter.interrupt();
+        }
+    }
+
+    /** Only two shared locks are compatible */
+    public boolean conflictsWith(LockType other) {
+        return lockType == LockType.EXCLUSIVE || other == LockType.EXCLUSIVE;
+    }
+
     @Override
     public String toString() {
         return "LockInfo{" +
@@ -129,14 +327,3 @@ enum LockType {
     SHARE,
     EXCLUSIVE
 }
-
-// next代表当前tid在等待他
-class TidNode{
-    TidNode next;
-
-    TransactionId tid;
-
-    public TidNode(TransactionId tid){
-        this.tid = tid;
-    }
-}
\ No newline at end of file
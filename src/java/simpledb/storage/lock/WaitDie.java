@@ -0,0 +1,32 @@
+package simpledb.storage.lock;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.Set;
+
+/**
+ * Wait-die deadlock prevention: a request may only wait for transactions
+ * younger than its own, otherwise it dies. Every wait therefore goes from
+ * an older to a younger transaction and no cycle can form. Each decision
+ * only looks at the blockers of one request and keeps no shared state.
+ *
+ * @see DeadlockPolicy#WAIT_DIE
+ */
+class WaitDie implements DeadlockHandler {
+
+    @Override
+    public void waitFor(LockInfo request, Set<TransactionId> blockers) {
+        long timestamp = request.getTid().getId();
+        for (TransactionId blocker : blockers) {
+            if (blocker.getId() < timestamp) {
+                request.abort();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean stopWaiting(LockInfo request) {
+        return !request.isAborted();
+    }
+}
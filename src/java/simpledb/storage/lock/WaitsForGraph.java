@@ -0,0 +1,128 @@
+package simpledb.storage.lock;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Waits-for graph between transactions, used by LockManager to detect
+ * deadlocks.
+ * <p>
+ * Edges are kept per waiting request: a request waits for every transaction
+ * in its blocker set (shared and exclusive holders as well as conflicting
+ * requests queued ahead of it), so a transaction can have many outgoing
+ * edges. The graph is maintained incrementally: each time the blockers of a
+ * request grow, a cycle search starts from that request's transaction, and
+ * the youngest transaction on a cycle found is aborted.
+ * <p>
+ * All methods synchronize on the graph. Callers may hold a PageLock monitor
+ * when calling in, but the graph never calls back into a PageLock.
+ *
+ * @see DeadlockPolicy#DETECTION
+ */
+class WaitsForGraph implements DeadlockHandler {
+
+    private final Map<LockInfo, Set<TransactionId>> blockers = new HashMap<>();
+
+    private final Map<TransactionId, Set<LockInfo>> waiting = new HashMap<>();
+
+    /**
+     * Replace the set of transactions request is waiting for, and abort a
+     * victim if the new edges close a cycle.
+     */
+    @Override
+    public synchronized void waitFor(LockInfo request, Set<TransactionId> newBlockers) {
+        if (request.isAborted()) {
+            return;
+        }
+        Set<TransactionId> old = blockers.put(request, newBlockers);
+        waiting.computeIfAbsent(request.getTid(), k -> new HashSet<>()).add(request);
+        if (old != null && old.containsAll(newBlockers)) {
+            // 没有新增的边，不会产生新的环
+            return;
+        }
+        List<TransactionId> cycle = findCycle(request.getTid());
+        if (cycle != null) {
+            abort(chooseVictim(cycle));
+        }
+    }
+
+    /** Remove request from the graph once it stops waiting */
+    @Override
+    public synchronized boolean stopWaiting(LockInfo request) {
+        if (blockers.remove(request) != null) {
+            Set<LockInfo> requests = waiting.get(request.getTid());
+            requests.remove(request);
+            if (requests.isEmpty()) {
+                waiting.remove(request.getTid());
+            }
+        }
+        return !request.isAborted();
+    }
+
+    /**
+     * Search for a path of waits-for edges from start back to itself.
+     *
+     * @return the transactions on that cycle, or null if there is none
+     */
+    private List<TransactionId> findCycle(TransactionId start) {
+        Map<TransactionId, TransactionId> parent = new HashMap<>();
+        Deque<TransactionId> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            TransactionId tid = stack.pop();
+            for (TransactionId next : waitsFor(tid)) {
+                if (next.equals(start)) {
+                    List<TransactionId> cycle = new ArrayList<>();
+                    for (TransactionId t = tid; t != null; t = parent.get(t)) {
+                        cycle.add(t);
+                    }
+                    return cycle;
+                }
+                if (!parent.containsKey(next)) {
+                    parent.put(next, tid);
+                    stack.push(next);
+                }
+            }
+        }
+        return null;
+    }
+
+    private Set<TransactionId> waitsFor(TransactionId tid) {
+        Set<LockInfo> requests = waiting.get(tid);
+        if (requests == null) {
+            return Collections.emptySet();
+        }
+        Set<TransactionId> result = new HashSet<>();
+        for (LockInfo request : requests) {
+            result.addAll(blockers.get(request));
+        }
+        return result;
+    }
+
+    /** The youngest transaction has done the least work, so it is the cheapest to redo */
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = cycle.get(0);
+        for (TransactionId tid : cycle) {
+            if (tid.getId() > victim.getId()) {
+                victim = tid;
+            }
+        }
+        return victim;
+    }
+
+    private void abort(TransactionId victim) {
+        for (LockInfo request : waiting.remove(victim)) {
+            blockers.remove(request);
+            request.abort();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package simpledb.storage.lock;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Wound-wait deadlock prevention: a request waits for older transactions
+ * and wounds every younger transaction in its way. Every wait therefore goes
+ * from a younger to an older transaction and no cycle can form.
+ * <p>
+ * A wounded transaction that is waiting for a lock is aborted right away.
+ * One that is still running is aborted at its next lock request, or simply
+ * finishes and releases its locks to the waiting older transaction.
+ *
+ * @see DeadlockPolicy#WOUND_WAIT
+ */
+class WoundWait implements DeadlockHandler {
+
+    private final Set<TransactionId> wounded = new HashSet<>();
+
+    private final Map<TransactionId, Set<LockInfo>> waiting = new HashMap<>();
+
+    @Override
+    public synchronized void waitFor(LockInfo request, Set<TransactionId> blockers) {
+        TransactionId tid = request.getTid();
+        if (wounded.contains(tid)) {
+            request.abort();
+            return;
+        }
+        waiting.computeIfAbsent(tid, k -> new HashSet<>()).add(request);
+        for (TransactionId blocker : blockers) {
+            if (blocker.getId() > tid.getId() && wounded.add(blocker)) {
+                Set<LockInfo> requests = waiting.remove(blocker);
+                if (requests != null) {
+                    for (LockInfo blocked : requests) {
+                        blocked.abort();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean stopWaiting(LockInfo request) {
+        Set<LockInfo> requests = waiting.get(request.getTid());
+        if (requests != null && requests.remove(request) && requests.isEmpty()) {
+            waiting.remove(request.getTid());
+        }
+        return !request.isAborted();
+    }
+
+    @Override
+    public synchronized boolean mustAbort(TransactionId tid) {
+        return wounded.contains(tid);
+    }
+
+    @Override
+    public synchronized void transactionComplete(TransactionId tid) {
+        wounded.remove(tid);
+        waiting.remove(tid);
+    }
+}
@@ -0,0 +1,500 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.storage.evict.EvictPolicy;
+import simpledb.storage.lock.DeadlockPolicy;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionId;
+
+public class BufferPoolTest extends TestUtil.CreateHeapFile {
+
+    // class to count (and slow down) the pages read from disk
+    static class CountingHeapFile extends HeapFile {
+
+        final AtomicInteger reads = new AtomicInteger();
+
+        public CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    // class whose page writes can be made to fail
+    static class FailingHeapFile extends HeapFile {
+
+        volatile boolean fail;
+
+        public FailingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            if (fail) {
+                throw new IOException("disk full");
+            }
+            super.writePage(page);
+        }
+    }
+
+    // class whose first page read stops after reading, until it is let go
+    static class GatedHeapFile extends HeapFile {
+
+        final AtomicBoolean armed = new AtomicBoolean(true);
+        final CountDownLatch read = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public GatedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            Page page = super.readPage(pid);
+            if (armed.compareAndSet(true, false)) {
+                read.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return page;
+        }
+    }
+
+    private CountingHeapFile counting;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1025; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        counting = new CountingHeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(counting, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Threads asking for the same missing page at once should read it from
+     * disk only once, and all get the same page.
+     */
+    @Test public void concurrentMissesReadPageOnce() throws Exception {
+        PageId pid = new HeapPageId(counting.getId(), 0);
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        Page[] pages = new Page[threads];
+        List<Thread> list = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int n = i;
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    pages[n] = Database.getBufferPool().getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            t.start();
+            list.add(t);
+        }
+        start.countDown();
+        for (Thread t : list) {
+            t.join();
+        }
+
+        assertEquals(1, counting.reads.get());
+        for (Page page : pages) {
+            assertSame(pages[0], page);
+        }
+    }
+
+    /**
+     * Threads reading different pages through a pool smaller than the file
+     * should keep evicting each other's pages without failing.
+     */
+    @Test public void concurrentMissesWithEviction() throws Exception {
+        Database.resetBufferPool(2);
+        int numPages = counting.numPages();
+        List<Thread> list = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < 4; i++) {
+            final int n = i;
+            Thread t = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 10; j++) {
+                        PageId pid = new HeapPageId(counting.getId(), (n + j) % numPages);
+                        Page page = Database.getBufferPool().getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+                        if (!page.getId().equals(pid)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            });
+            t.start();
+            list.add(t);
+        }
+        for (Thread t : list) {
+            t.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
+    /**
+     * A pinned page stays in the pool while other pages are read, and is
+     * only evicted once it is unpinned.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        PageId p0 = new HeapPageId(counting.getId(), 0);
+        PageId p1 = new HeapPageId(counting.getId(), 1);
+        PageId p2 = new HeapPageId(counting.getId(), 2);
+
+        bp.pin(p0);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        int reads = counting.reads.get();
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(reads, counting.reads.get());
+
+        bp.unpin(p0);
+        bp.getPage(tid, p2, Permissions.READ_ONLY);
+        bp.getPage(tid, p1, Permissions.READ_ONLY);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        assertTrue(counting.reads.get() > reads);
+    }
+
+    /**
+     * A scan keeps the page it is on pinned until it moves on or is closed,
+     * so the page is not evicted while its tuples are still being decoded.
+     */
+    @Test public void scanPinsCurrentPage() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        PageId p0 = new HeapPageId(counting.getId(), 0);
+        DbFileIterator it = counting.iterator(tid, true);
+        it.open();
+        bp.getPage(tid, new HeapPageId(counting.getId(), 1), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(counting.getId(), 2), Permissions.READ_ONLY);
+        int reads = counting.reads.get();
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        assertEquals(reads, counting.reads.get());
+        it.close();
+
+        // 关掉之后就不再pin着了
+        bp = Database.resetBufferPool(1);
+        it = counting.iterator(tid, true);
+        it.open();
+        it.close();
+        assertEquals(new HeapPageId(counting.getId(), 1),
+                bp.getPage(tid, new HeapPageId(counting.getId(), 1), Permissions.READ_ONLY).getId());
+    }
+
+    /**
+     * Reading a page into a pool whose pages are all pinned should fail
+     * instead of evicting a pinned page or waiting forever.
+     */
+    @Test public void allPagesPinned() throws Exception {
+        BufferPool bp = Database.resetBufferPool(1);
+        TransactionId tid = new TransactionId();
+        PageId p0 = new HeapPageId(counting.getId(), 0);
+        PageId p1 = new HeapPageId(counting.getId(), 1);
+
+        bp.pin(p0);
+        bp.getPage(tid, p0, Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, p1, Permissions.READ_ONLY);
+            fail("Expected the pinned page to block eviction");
+        } catch (DbException ignored) {}
+
+        bp.unpin(p0);
+        assertEquals(p1, bp.getPage(tid, p1, Permissions.READ_ONLY).getId());
+    }
+
+    /**
+     * A sequential scan reads the following pages ahead in the background,
+     * each page still read from disk only once; read-ahead can be turned off.
+     */
+    @Test public void scanReadsAhead() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = counting.iterator(tid, true);
+        it.open();
+        for (int i = 0; i < 100 && counting.reads.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(counting.reads.get() >= 2);
+
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        assertEquals(counting.numPages(), counting.reads.get());
+
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setMaxReadAhead(0);
+        counting.reads.set(0);
+        it = counting.iterator(tid, true);
+        it.open();
+        Thread.sleep(200);
+        assertEquals(1, counting.reads.get());
+        it.close();
+    }
+
+    /**
+     * A page discarded while read-ahead is reading it must not be cached
+     * as read before the discard; getPage then sees what is on disk.
+     */
+    @Test public void discardDuringPrefetch() throws Exception {
+        GatedHeapFile gated = new GatedHeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(gated, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        PageId pid = new HeapPageId(gated.getId(), 0);
+
+        bp.prefetchPage(pid);
+        assertTrue(gated.read.await(10, TimeUnit.SECONDS));
+
+        // 像rollback一样，先写盘再discard
+        HeapPage onDisk = (HeapPage) gated.readPage(pid);
+        onDisk.insertTuple(Utility.getHeapTuple(4242, 2));
+        gated.writePage(onDisk);
+        bp.discardPage(pid);
+        gated.release.countDown();
+
+        TransactionId tid = new TransactionId();
+        Page page = bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertArrayEquals(onDisk.getPageData(), page.getPageData());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A read that finds every frame taken by a page still being read should
+     * give up after a while instead of spinning until the read finishes.
+     */
+    @Test public void frameWaitIsBounded() throws Exception {
+        GatedHeapFile gated = new GatedHeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(gated, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(1);
+        PageId p0 = new HeapPageId(gated.getId(), 0);
+        PageId p1 = new HeapPageId(gated.getId(), 1);
+
+        bp.prefetchPage(p0);
+        assertTrue(gated.read.await(10, TimeUnit.SECONDS));
+        TransactionId tid = new TransactionId();
+        try {
+            bp.getPage(tid, p1, Permissions.READ_ONLY);
+            fail("Expected the wait for a free frame to time out");
+        } catch (DbException ignored) {}
+
+        gated.release.countDown();
+        assertEquals(p1, bp.getPage(tid, p1, Permissions.READ_ONLY).getId());
+        bp.transactionComplete(tid);
+    }
+
+    /** Read hot normally, scan the whole file once, and return true if hot is still in the pool */
+    private boolean survivesScan(EvictPolicy policy, PageId hot) throws Exception {
+        BufferPool bp = Database.resetBufferPool(3, DeadlockPolicy.DETECTION, false, policy);
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+        DbFileIterator it = counting.iterator(tid, true);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        int reads = counting.reads.get();
+        bp.getPage(tid, hot, Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        return counting.reads.get() == reads;
+    }
+
+    /**
+     * With the TWO_QUEUE policy a page used normally stays in the pool while
+     * a scan larger than the pool goes through it; LRU ignores the use-once
+     * hints of the scan and gives the page up.
+     */
+    @Test public void twoQueueKeepsPageAcrossScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1100; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertTrue(counting.numPages() > 4);
+        PageId hot = new HeapPageId(counting.getId(), 0);
+
+        assertTrue(survivesScan(EvictPolicy.TWO_QUEUE, hot));
+        assertFalse(survivesScan(EvictPolicy.LRU, hot));
+    }
+
+    /**
+     * With off-heap frames, cached pages keep their before-image in a frame,
+     * abort still restores it, and pages leaving the pool give their frame
+     * back but keep their before-image.
+     */
+    @Test public void offHeapFrames() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2, DeadlockPolicy.DETECTION, true);
+        TransactionId tid = new TransactionId();
+        PageId p0 = new HeapPageId(empty.getId(), 0);
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE);
+        assertEquals(1, bp.getOffHeapFramesInUse());
+        byte[] before = page.getPageData();
+
+        bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(4242, 2));
+        assertFalse(Arrays.equals(before, page.getPageData()));
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        HeapPage restored = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+        assertArrayEquals(before, restored.getPageData());
+        assertTrue(bp.getOffHeapFramesInUse() <= 2);
+
+        bp.getPage(tid, new HeapPageId(empty.getId(), 1), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(empty.getId(), 2), Permissions.READ_ONLY);
+        assertTrue(bp.getOffHeapFramesInUse() <= 2);
+        assertArrayEquals(before, restored.getBeforeImage().getPageData());
+        bp.transactionComplete(tid);
+    }
+
+    /** Return true if the page of the tuple on disk holds a tuple with the value v */
+    private boolean onDisk(Tuple t, int v) {
+        HeapPage page = (HeapPage) empty.readPage(t.getRecordId().getPageId());
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            if (it.next().getField(0).equals(new IntField(v))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * With a page cleaner running, committing only logs the dirtied page; it
+     * reaches disk when it is flushed.
+     */
+    @Test public void commitWithCleanerDoesNotWritePages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        PageCleaner cleaner = bp.startPageCleaner(0, 1, 60000);
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            Tuple tup = Utility.getHeapTuple(7777, 2);
+            bp.insertTuple(t.getId(), empty.getId(), tup);
+            t.commit();
+
+            assertEquals(1, cleaner.getCommittedDirtyPages());
+            assertFalse(onDisk(tup, 7777));
+            bp.flushAllPages();
+            assertEquals(0, cleaner.getCommittedDirtyPages());
+            assertTrue(onDisk(tup, 7777));
+        } finally {
+            bp.stopPageCleaner();
+        }
+    }
+
+    /**
+     * The page cleaner writes committed pages back in the background.
+     */
+    @Test public void pageCleanerWritesCommittedPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        PageCleaner cleaner = bp.startPageCleaner(0, 0, 10);
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            Tuple tup = Utility.getHeapTuple(8888, 2);
+            bp.insertTuple(t.getId(), empty.getId(), tup);
+            t.commit();
+
+            // pagesWritten在一轮写完之后才更新
+            for (int i = 0; i < 200 && cleaner.getPagesWritten() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, cleaner.getPagesWritten());
+            assertEquals(0, cleaner.getCommittedDirtyPages());
+            assertTrue(onDisk(tup, 8888));
+        } finally {
+            bp.stopPageCleaner();
+        }
+        assertNull(bp.getPageCleaner());
+    }
+
+    /**
+     * A committed page that cannot be written back when it is evicted stays
+     * in the pool, and reaches disk once writing works again.
+     */
+    @Test public void evictionKeepsPageItCannotWrite() throws Exception {
+        FailingHeapFile failing = new FailingHeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(failing, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(1);
+        bp.startPageCleaner(0, 2, 60000);
+        try {
+            Transaction t = new Transaction();
+            t.start();
+            Tuple tup = Utility.getHeapTuple(9999, 2);
+            bp.insertTuple(t.getId(), failing.getId(), tup);
+            t.commit();
+
+            failing.fail = true;
+            int other = (tup.getRecordId().getPageId().getPageNumber() + 1) % failing.numPages();
+            TransactionId tid = new TransactionId();
+            try {
+                bp.getPage(tid, new HeapPageId(failing.getId(), other), Permissions.READ_ONLY);
+                fail("Expected the failed write back to be reported");
+            } catch (DbException ignored) {}
+            bp.transactionComplete(tid);
+
+            failing.fail = false;
+            assertFalse(onDisk(tup, 9999));
+            bp.flushAllPages();
+            assertTrue(onDisk(tup, 9999));
+        } finally {
+            bp.stopPageCleaner();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.evict.ClockEvict;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ClockEvictTest {
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    /**
+     * A page hit again after the hand cleared its reference bit gets a
+     * second chance, the other pages go first.
+     */
+    @Test public void referencedPageGetsSecondChance() {
+        ClockEvict clock = new ClockEvict(3);
+        clock.modifyData(page(0));
+        clock.modifyData(page(1));
+        clock.modifyData(page(2));
+
+        // 一整圈把引用位都清掉，淘汰page 0
+        assertEquals(page(0), clock.getEvictPageId());
+        clock.modifyData(page(1));
+        assertEquals(page(2), clock.getEvictPageId());
+        assertEquals(page(1), clock.getEvictPageId());
+        assertNull(clock.getEvictPageId());
+    }
+
+    /**
+     * A scan hitting a page it read before sets the reference bit like any
+     * other hit, so the inner table of a join survives a round of the hand.
+     */
+    @Test public void repeatedUseOnceHitGetsSecondChance() {
+        ClockEvict clock = new ClockEvict(3);
+        clock.modifyDataOnce(page(0));
+        clock.modifyDataOnce(page(1));
+        clock.modifyDataOnce(page(2));
+        clock.modifyDataOnce(page(0));
+
+        assertEquals(page(1), clock.getEvictPageId());
+        assertEquals(page(2), clock.getEvictPageId());
+        assertEquals(page(0), clock.getEvictPageId());
+    }
+
+    /**
+     * The scan reaching a page it read ahead is its first use, not a reuse,
+     * but a second hit after that counts.
+     */
+    @Test public void prefetchedPageIsUsedOnce() {
+        ClockEvict clock = new ClockEvict(3);
+        clock.modifyDataPrefetched(page(0));
+        clock.modifyDataPrefetched(page(1));
+        clock.modifyDataPrefetched(page(2));
+        clock.modifyDataOnce(page(0));
+        clock.modifyDataOnce(page(1));
+        clock.modifyDataOnce(page(1));
+
+        assertEquals(page(0), clock.getEvictPageId());
+        assertEquals(page(2), clock.getEvictPageId());
+        assertEquals(page(1), clock.getEvictPageId());
+    }
+
+    /**
+     * Pages the pool refuses to evict are skipped while others are left,
+     * and only returned when nothing else is.
+     */
+    @Test public void skipsPagesThatAreNotEvictable() {
+        Set<PageId> dirty = new HashSet<>();
+        dirty.add(page(0));
+        ClockEvict clock = new ClockEvict(2, pageId -> !dirty.contains(pageId));
+        clock.modifyData(page(0));
+        clock.modifyData(page(1));
+
+        assertEquals(page(1), clock.getEvictPageId());
+        assertEquals(page(0), clock.getEvictPageId());
+    }
+
+    /**
+     * Removed pages are never returned, and more pages than frames can be
+     * tracked.
+     */
+    @Test public void removeAndGrow() {
+        ClockEvict clock = new ClockEvict(1);
+        for (int i = 0; i < 4; i++) {
+            clock.modifyData(page(i));
+        }
+        clock.removeData(page(0));
+        clock.removeData(page(2));
+
+        Set<PageId> evicted = new HashSet<>();
+        evicted.add(clock.getEvictPageId());
+        evicted.add(clock.getEvictPageId());
+        assertNull(clock.getEvictPageId());
+        assertEquals(2, evicted.size());
+        assertTrue(evicted.contains(page(1)));
+        assertTrue(evicted.contains(page(3)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ClockEvictTest.class);
+    }
+}
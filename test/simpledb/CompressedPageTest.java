@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import static org.junit.Assert.*;
+
+public class CompressedPageTest extends TestUtil.PageFormatTest {
+
+    private static List<Tuple> tuples(int n) {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            // increasing ints, strings from a small dictionary, and long runs of equal ints
+            tuples.add(tuple(1000000 + i, "region" + (i % 7), i / 100));
+        }
+        return tuples;
+    }
+
+    private static void assertSameTuples(List<Tuple> expected, Iterator<Tuple> it) {
+        for (Tuple t : expected) {
+            assertTrue(it.hasNext());
+            assertTrue(TestUtil.compareTuples(t, it.next()));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Tuples come back from the compressed bytes unchanged, and far more of
+     * them fit on a page than on a HeapPage.
+     */
+    @Test public void encodeAndDecode() throws Exception {
+        List<Tuple> tuples = tuples(CompressedPage.MAX_TUPLES);
+        int k = CompressedPage.fit(tuples, TD);
+        // a HeapPage holds 28 of these tuples
+        assertTrue(k > 500);
+
+        List<Tuple> onPage = tuples.subList(0, k);
+        CompressedPage page = new CompressedPage(pid, CompressedPage.encode(onPage, TD));
+        assertEquals(k, page.getNumTuples());
+        assertSameTuples(onPage, page.iterator());
+    }
+
+    /**
+     * Extreme ints survive bit-packing, and an all-zero page is empty.
+     */
+    @Test public void extremesAndEmpty() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        tuples.add(tuple(Integer.MIN_VALUE, "", Integer.MAX_VALUE));
+        tuples.add(tuple(Integer.MAX_VALUE, "x", Integer.MIN_VALUE));
+        tuples.add(tuple(0, "", -1));
+        CompressedPage page = new CompressedPage(pid, CompressedPage.encode(tuples, TD));
+        assertSameTuples(tuples, page.iterator());
+
+        page = new CompressedPage(pid, new byte[BufferPool.getPageSize()]);
+        assertEquals(0, page.getNumTuples());
+    }
+
+    /**
+     * When no string repeats, the dictionary takes up the page: fit stops at
+     * the last tuple whose string still fits, one more overflows the page,
+     * and the tuples that fit decode.
+     */
+    @Test public void dictionaryOverflow() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            tuples.add(tuple(i, String.format("%0100d", i), 0));
+        }
+        int k = CompressedPage.fit(tuples, TD);
+        assertTrue(k > 0);
+        assertTrue(k < BufferPool.getPageSize() / 100);
+        assertTrue(CompressedPage.encode(tuples.subList(0, k + 1), TD).length > BufferPool.getPageSize());
+
+        List<Tuple> onPage = tuples.subList(0, k);
+        CompressedPage page = new CompressedPage(pid, CompressedPage.encode(onPage, TD));
+        assertSameTuples(onPage, page.iterator());
+    }
+
+    /**
+     * Columns that never change are a single run however many tuples there
+     * are, so MAX_TUPLES rather than the page size limits the page. Columns
+     * that change on every tuple have as many runs as values and are
+     * bit-packed instead. Both decode.
+     */
+    @Test public void runOverflow() throws Exception {
+        List<Tuple> constant = new ArrayList<>();
+        for (int i = 0; i <= CompressedPage.MAX_TUPLES; i++) {
+            constant.add(tuple(7, "same", Integer.MIN_VALUE));
+        }
+        assertEquals(CompressedPage.MAX_TUPLES, CompressedPage.fit(constant, TD));
+        List<Tuple> onPage = constant.subList(0, CompressedPage.MAX_TUPLES);
+        byte[] data = CompressedPage.encode(onPage, TD);
+        assertTrue(data.length < 100);
+        assertSameTuples(onPage, new CompressedPage(pid, data).iterator());
+
+        List<Tuple> alternating = new ArrayList<>();
+        for (int i = 0; i < CompressedPage.MAX_TUPLES; i++) {
+            alternating.add(tuple(i % 2, "same", i % 2 == 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE));
+        }
+        int k = CompressedPage.fit(alternating, TD);
+        // 第三列每个值要32位，打包之后一页最多放这么多
+        assertTrue(k > 900);
+        assertTrue(k < BufferPool.getPageSize() / 4);
+        onPage = alternating.subList(0, k);
+        assertSameTuples(onPage, new CompressedPage(pid, CompressedPage.encode(onPage, TD)).iterator());
+    }
+
+    /**
+     * A CompressedFile scans back what was appended and refuses inserts.
+     */
+    @Test public void fileAppendAndScan() throws Exception {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        CompressedFile file = new CompressedFile(f, TD);
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+
+        List<Tuple> tuples = tuples(20000);
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(tuples.size(), file.append(t.getId(), tuples.iterator()));
+        t.commit();
+        assertTrue(file.numPages() < tuples.size() / 500);
+
+        t = new Transaction();
+        t.start();
+        DbFileIterator it = file.iterator(t.getId());
+        it.open();
+        for (Tuple expected : tuples) {
+            assertTrue(it.hasNext());
+            assertTrue(TestUtil.compareTuples(expected, it.next()));
+        }
+        assertFalse(it.hasNext());
+        it.close();
+
+        try {
+            file.insertTuple(t.getId(), tuple(0, "a", 0));
+            fail("compressed file should be append-only");
+        } catch (DbException expected) {
+        }
+        t.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedPageTest.class);
+    }
+}
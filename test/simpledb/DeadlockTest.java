@@ -7,6 +7,9 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -14,6 +17,7 @@ import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.storage.lock.DeadlockPolicy;
 import simpledb.transaction.TransactionId;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -38,7 +42,7 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
 
     // create a new empty HeapFile and populate it with three pages.
-    // we should be able to add 504 tuples on an empty page.
+    // we should be able to add 503 tuples on an empty page.
     TransactionId tid = new TransactionId();
     for (int i = 0; i < 1025; ++i) {
       empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
@@ -219,6 +223,72 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     System.out.println("testUpgradeWriteDeadlock resolved deadlock");
   }
 
+  /**
+   * t2 (the younger transaction) waits on t1 first; t1 then closes the
+   * cycle. The deadlock should be broken by aborting t2, not whichever
+   * transaction happened to close the cycle.
+   */
+  @Test public void testYoungestTransactionIsVictim() throws Exception {
+    LockGrabber lg1Read = startGrabber(tid1, p0, Permissions.READ_ONLY);
+    LockGrabber lg2Read = startGrabber(tid2, p1, Permissions.READ_ONLY);
+
+    // allow read locks to acquire
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    LockGrabber lg1Write = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    assertNotNull(lg2Write.getError());
+    assertNull(lg1Write.getError());
+    assertTrue(lg1Write.acquired());
+  }
+
+  /**
+   * Under wait-die, the older t1 waits for the younger t2, while t2 dies
+   * as soon as it has to wait for t1.
+   */
+  @Test public void testWaitDie() throws Exception {
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES, DeadlockPolicy.WAIT_DIE);
+
+    startGrabber(tid1, p0, Permissions.READ_WRITE);
+    startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg1Write = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1Write.acquired());
+    assertNull(lg1Write.getError());
+
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertNotNull(lg2Write.getError());
+    assertTrue(lg1Write.acquired());
+  }
+
+  /**
+   * Under wound-wait, the younger t2 waits for the older t1, and is
+   * wounded as soon as t1 has to wait for it.
+   */
+  @Test public void testWoundWait() throws Exception {
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES, DeadlockPolicy.WOUND_WAIT);
+
+    startGrabber(tid1, p0, Permissions.READ_WRITE);
+    startGrabber(tid2, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+
+    LockGrabber lg2Write = startGrabber(tid2, p0, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2Write.acquired());
+    assertNull(lg2Write.getError());
+
+    LockGrabber lg1Write = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertNotNull(lg2Write.getError());
+    assertTrue(lg1Write.acquired());
+  }
+
   /**
    * JUnit suite target
    */
@@ -6,6 +6,7 @@ import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -76,7 +77,7 @@ public class HeapFileReadTest extends SimpleDbTestBase {
 
         // NOTE(ghuo): we try not to dig too deeply into the Page API here; we
         // rely on HeapPageTest for that. perform some basic checks.
-        assertEquals(484, page.getNumEmptySlots());
+        assertEquals(483, page.getNumEmptySlots());
         assertTrue(page.isSlotUsed(1));
         assertFalse(page.isSlotUsed(20));
     }
@@ -125,6 +126,70 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A memory-mapped HeapFile reads the same pages as a plain one, sees
+     * pages written after it was mapped, including new pages at the end.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        assertTrue(mapped.isMemoryMapped());
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        assertArrayEquals(hf.readPage(pid).getPageData(), mapped.readPage(pid).getPageData());
+        assertArrayEquals(hf.readPage(pid).getPageData(), mapped.readPage(pid).getBeforeImage().getPageData());
+
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        mapped.writePage(page);
+        assertEquals(484, ((HeapPage) mapped.readPage(pid)).getNumEmptySlots());
+
+        HeapPageId next = new HeapPageId(hf.getId(), 1);
+        mapped.writePage(new HeapPage(next, page.getPageData()));
+        assertEquals(2, mapped.numPages());
+        assertEquals(484, ((HeapPage) mapped.readPage(next)).getNumEmptySlots());
+        mapped.close();
+    }
+
+    /**
+     * A memory-mapped page decodes its tuples from the mapping, but keeps
+     * its before-image once it is changed and written back.
+     */
+    @Test
+    public void memoryMappedPageKeepsBeforeImage() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] before = hf.readPage(pid).getPageData();
+
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        mapped.writePage(page);
+        assertArrayEquals(page.getPageData(), hf.readPage(pid).getPageData());
+        assertArrayEquals(before, page.getBeforeImageData());
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+        mapped.close();
+    }
+
+    /**
+     * A page read into a frame is decoded from it, even when the frame held
+     * another page before, and a page past the end of the file is empty.
+     */
+    @Test
+    public void readPageIntoFrame() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        ByteBuffer frame = ByteBuffer.allocateDirect(BufferPool.getPageSize());
+        while (frame.hasRemaining()) {
+            frame.put((byte) 0x7f);
+        }
+        frame.clear();
+
+        HeapPage page = (HeapPage) hf.readPage(pid, frame);
+        assertArrayEquals(hf.readPage(pid).getPageData(), page.getPageData());
+        assertEquals(483, page.getNumEmptySlots());
+
+        page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 1), frame);
+        assertEquals(503, page.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
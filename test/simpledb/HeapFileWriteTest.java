@@ -7,13 +7,16 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -34,14 +37,14 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
      * Unit test for HeapFile.addTuple()
      */
     @Test public void addTuple() throws Exception {
-        // we should be able to add 504 tuples on an empty page.
-        for (int i = 0; i < 504; ++i) {
+        // we should be able to add 503 tuples on an empty page.
+        for (int i = 0; i < 503; ++i) {
             empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
             assertEquals(1, empty.numPages());
         }
 
-        // the next 512 additions should live on a new page
-        for (int i = 0; i < 504; ++i) {
+        // the next 503 additions should live on a new page
+        for (int i = 0; i < 503; ++i) {
             empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
             assertEquals(2, empty.numPages());
         }
@@ -51,6 +54,158 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * A slot freed on an early page is reused instead of appending a page,
+     * and once that page is full again inserts go to the next page with room.
+     */
+    @Test public void insertReusesFreedSlot() throws Exception {
+        Tuple first = null;
+        for (int i = 0; i < 503 + 10; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            if (i == 0) {
+                first = t;
+            }
+        }
+        empty.deleteTuple(tid, first);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(2, empty.numPages());
+
+        TransactionId other = new TransactionId();
+        try {
+            Tuple t = Utility.getHeapTuple(0, 2);
+            empty.insertTuple(other, t);
+            assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+            t = Utility.getHeapTuple(1, 2);
+            empty.insertTuple(other, t);
+            assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+            assertEquals(2, empty.numPages());
+        } finally {
+            Database.getBufferPool().transactionComplete(other);
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.bulkLoad()
+     */
+    @Test public void bulkLoad() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 503 + 10; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        // the empty first page stays, the tuples go on two new pages
+        assertEquals(tuples.size(), empty.bulkLoad(tid, tuples.iterator()));
+        assertEquals(3, empty.numPages());
+        assertEquals(2, tuples.get(tuples.size() - 1).getRecordId().getPageId().getPageNumber());
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            assertEquals(count, ((IntField) it.next().getField(0)).getValue());
+            count++;
+        }
+        it.close();
+        assertEquals(tuples.size(), count);
+    }
+
+    /**
+     * Pages a bulk load appends stay locked by it, and inserts of other
+     * transactions only use them once it has committed.
+     */
+    @Test(timeout = 20000) public void bulkLoadedPagesWaitForCommit() throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            tuples.add(Utility.getHeapTuple(i, 2));
+        }
+        // the tuples go on a new page after the empty first page
+        empty.bulkLoad(tid, tuples.iterator());
+        PageId loaded = new HeapPageId(empty.getId(), 1);
+        assertTrue(Database.getBufferPool().holdsLock(tid, loaded));
+
+        // once the first page is full, another transaction appends a page
+        TransactionId other = new TransactionId();
+        Tuple t = null;
+        for (int i = 0; i < 503 + 1; ++i) {
+            t = Utility.getHeapTuple(i, 2);
+            Database.getBufferPool().insertTuple(other, empty.getId(), t);
+        }
+        assertEquals(2, t.getRecordId().getPageId().getPageNumber());
+        Database.getBufferPool().transactionComplete(other);
+        Database.getBufferPool().transactionComplete(tid);
+        assertFalse(Database.getBufferPool().holdsLock(tid, loaded));
+
+        other = new TransactionId();
+        try {
+            t = Utility.getHeapTuple(0, 2);
+            Database.getBufferPool().insertTuple(other, empty.getId(), t);
+            assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+        } finally {
+            Database.getBufferPool().transactionComplete(other);
+        }
+    }
+
+    /**
+     * A bulk load waiting for the lock of a page it appends does not hold
+     * up inserts of other transactions that need a new page.
+     */
+    @Test(timeout = 20000) public void bulkLoadWaitingForLockDoesNotBlockInserts() throws Exception {
+        // 先把第一页填满，之后的插入都要新加page
+        for (int i = 0; i < 503; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        // other锁住导入要用的第二页
+        TransactionId other = new TransactionId();
+        Database.getBufferPool().getPage(other, new HeapPageId(empty.getId(), 1), Permissions.READ_ONLY);
+        TransactionId loader = new TransactionId();
+        Exception[] error = new Exception[1];
+        Thread load = new Thread(() -> {
+            try {
+                empty.bulkLoad(loader, Arrays.asList(Utility.getHeapTuple(0, 2)).iterator());
+            } catch (Exception e) {
+                error[0] = e;
+            }
+        });
+        load.start();
+        while (empty.numPages() < 2) {
+            Thread.sleep(10);
+        }
+
+        TransactionId inserter = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        Database.getBufferPool().insertTuple(inserter, empty.getId(), t);
+        assertEquals(2, t.getRecordId().getPageId().getPageNumber());
+        assertTrue(load.isAlive());
+        Database.getBufferPool().transactionComplete(inserter);
+
+        Database.getBufferPool().transactionComplete(other);
+        load.join();
+        assertNull(error[0]);
+        assertTrue(Database.getBufferPool().holdsLock(loader, new HeapPageId(empty.getId(), 1)));
+        Database.getBufferPool().transactionComplete(loader);
+    }
+
+    /**
+     * The page a transaction inserted into is given to other transactions
+     * once it completes, even while its TransactionId is still around.
+     */
+    @Test public void completedTransactionGivesUpItsPage() throws Exception {
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(0, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        empty.writePage(new HeapPage(new HeapPageId(empty.getId(), 1), HeapPage.createEmptyPageData()));
+
+        TransactionId other = new TransactionId();
+        try {
+            Tuple t = Utility.getHeapTuple(1, 2);
+            Database.getBufferPool().insertTuple(other, empty.getId(), t);
+            assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        } finally {
+            Database.getBufferPool().transactionComplete(other);
+        }
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
@@ -59,7 +214,8 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         // Grab table id
         int tableId = smallFile.getId();
         int tdSize = 8;
-        int numTuples = (BufferPool.getPageSize()*8) / (tdSize * 8 + 1);
+        // the last 8 bytes of a page hold its pageLSN
+        int numTuples = ((BufferPool.getPageSize() - 8)*8) / (tdSize * 8 + 1);
         int headerSize = (int) Math.ceil(numTuples / 8.0);
         // Leave these as all zeroes so this entire page is empty
         byte[] empty = new byte[numTuples * 8 + headerSize];
@@ -91,6 +247,36 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Pages written and read after the file is closed go through a reopened
+     * channel, and an interrupted reader does not break the file for others.
+     */
+    @Test public void readAndWriteAfterCloseAndInterrupt() throws Exception {
+        int tableId = empty.getId();
+        byte[] data = HeapPage.createEmptyPageData();
+        data[0] = (byte) 0x01;
+        empty.writePage(new HeapPage(new HeapPageId(tableId, 0), data));
+
+        empty.close();
+        empty.writePage(new HeapPage(new HeapPageId(tableId, 1), data));
+        assertEquals(2, empty.numPages());
+
+        Thread reader = new Thread(() -> {
+            Thread.currentThread().interrupt();
+            try {
+                empty.readPage(new HeapPageId(tableId, 0));
+            } catch (RuntimeException ignored) {
+            }
+        });
+        reader.start();
+        reader.join();
+
+        for (int i = 0; i < 2; i++) {
+            HeapPage page = (HeapPage) empty.readPage(new HeapPageId(tableId, i));
+            assertArrayEquals(data, page.getPageData());
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -1,5 +1,6 @@
 package simpledb;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -57,7 +58,7 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         int free = page.getNumEmptySlots();
 
         // NOTE(ghuo): this nested loop existence check is slow, but it
-        // shouldn't make a difference for n = 504 slots.
+        // shouldn't make a difference for n = 503 slots.
 
         for (int i = 0; i < free; ++i) {
             Tuple addition = Utility.getHeapTuple(i, 2);
@@ -131,6 +132,25 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * The before-image keeps the contents as of the last setBeforeImage,
+     * which only copies the page when it was changed since then.
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getBeforeImageData();
+        page.setBeforeImage();
+        assertSame(before, page.getBeforeImageData());
+
+        page.insertTuple(Utility.getHeapTuple(4242, 2));
+        assertSame(before, page.getBeforeImageData());
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+
+        page.setBeforeImage();
+        assertArrayEquals(page.getPageData(), page.getBeforeImageData());
+        assertFalse(Arrays.equals(before, page.getBeforeImageData()));
+    }
+
     /**
      * JUnit suite target
      */
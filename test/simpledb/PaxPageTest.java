@@ -0,0 +1,181 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class PaxPageTest extends TestUtil.PageFormatTest {
+
+    /**
+     * A PaxPage holds as many tuples as it has slots, and reads back the same
+     * from its bytes.
+     */
+    @Test public void insertUntilFull() throws Exception {
+        PaxPage page = new PaxPage(pid, PaxPage.createEmptyPageData());
+        int n = page.getNumSlots();
+        for (int i = 0; i < n; i++) {
+            Tuple t = tuple(i, "name" + i, -i);
+            page.insertTuple(t);
+            assertEquals(i, t.getRecordId().getTupleNumber());
+        }
+        assertEquals(0, page.getNumEmptySlots());
+        try {
+            page.insertTuple(tuple(n, "x", n));
+            fail("page should be full");
+        } catch (DbException expected) {
+        }
+
+        PaxPage copy = new PaxPage(pid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < n; i++) {
+            assertTrue(TestUtil.compareTuples(tuple(i, "name" + i, -i), it.next()));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * The pageLSN is kept in the bytes of the page, next to the last column
+     * of a full page without overwriting it.
+     */
+    @Test public void pageLsn() throws Exception {
+        PaxPage page = new PaxPage(pid, PaxPage.createEmptyPageData());
+        assertEquals(0, page.getLSN());
+        int n = page.getNumSlots();
+        for (int i = 0; i < n; i++) {
+            page.insertTuple(tuple(i, "name" + i, -1));
+        }
+        page.setLSN(0x0102030405060708L);
+
+        PaxPage copy = new PaxPage(pid, page.getPageData());
+        assertEquals(0x0102030405060708L, copy.getLSN());
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < n; i++) {
+            assertTrue(TestUtil.compareTuples(tuple(i, "name" + i, -1), it.next()));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Only the requested columns are decoded, and a deleted slot is skipped
+     * and used again.
+     */
+    @Test public void projectionAndDelete() throws Exception {
+        PaxPage page = new PaxPage(pid, PaxPage.createEmptyPageData());
+        Tuple a = tuple(1, "a", 10);
+        Tuple b = tuple(2, "b", 20);
+        Tuple c = tuple(3, "c", 30);
+        page.insertTuple(a);
+        page.insertTuple(b);
+        page.insertTuple(c);
+        page.deleteTuple(b);
+        assertFalse(page.isSlotUsed(1));
+
+        Iterator<Tuple> it = page.iterator(new int[] { 2 });
+        Tuple t = it.next();
+        assertNull(t.getField(0));
+        assertNull(t.getField(1));
+        assertEquals(new IntField(10), t.getField(2));
+        assertEquals(a.getRecordId(), t.getRecordId());
+        assertEquals(new IntField(30), it.next().getField(2));
+        assertFalse(it.hasNext());
+
+        Tuple d = tuple(4, "d", 40);
+        page.insertTuple(d);
+        assertEquals(1, d.getRecordId().getTupleNumber());
+        assertTrue(TestUtil.compareTuples(d, page.getTuple(1)));
+    }
+
+    /**
+     * On a full page each column can be read on its own, in slot order and
+     * with the right record ids, and projecting no columns still finds every
+     * tuple; a projection never decodes a column it did not ask for.
+     */
+    @Test public void projectEachColumn() throws Exception {
+        PaxPage page = new PaxPage(pid, PaxPage.createEmptyPageData());
+        int n = page.getNumSlots();
+        for (int i = 0; i < n; i++) {
+            page.insertTuple(tuple(i, "name" + i, -i));
+        }
+        Tuple[] expected = new Tuple[n];
+        for (int i = 0; i < n; i++) {
+            expected[i] = tuple(i, "name" + i, -i);
+        }
+
+        for (int j = 0; j < TD.numFields(); j++) {
+            Iterator<Tuple> it = page.iterator(new int[] { j });
+            for (int i = 0; i < n; i++) {
+                Tuple t = it.next();
+                assertEquals(i, t.getRecordId().getTupleNumber());
+                for (int k = 0; k < TD.numFields(); k++) {
+                    if (k == j) {
+                        assertEquals(expected[i].getField(k), t.getField(k));
+                    } else {
+                        assertNull(t.getField(k));
+                    }
+                }
+            }
+            assertFalse(it.hasNext());
+        }
+
+        Iterator<Tuple> it = page.iterator(new int[0]);
+        for (int i = 0; i < n; i++) {
+            Tuple t = it.next();
+            assertEquals(i, t.getRecordId().getTupleNumber());
+            assertNull(t.getField(0));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * A PaxFile stores tuples through the BufferPool, and a SeqScan told
+     * which fields it needs returns only those.
+     */
+    @Test public void fileInsertAndScan() throws Exception {
+        File f = File.createTempFile("pax", ".dat");
+        f.deleteOnExit();
+        PaxFile file = new PaxFile(f, TD);
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        int n = 100;
+        for (int i = 0; i < n; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), tuple(i, "name" + i, i * 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(file.numPages() > 1);
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, file.getId(), "p", new int[] { 0, 2 });
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int i = ((IntField) t.getField(0)).getValue();
+            assertNull(t.getField(1));
+            assertEquals(new IntField(i * 2), t.getField(2));
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(n, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxPageTest.class);
+    }
+}
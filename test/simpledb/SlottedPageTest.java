@@ -0,0 +1,189 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class SlottedPageTest extends TestUtil.PageFormatTest {
+
+    /**
+     * Short strings only take the bytes they use, and the page reads back
+     * the same from its bytes.
+     */
+    @Test public void insertUntilFull() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        int n = 0;
+        while (page.fits(SlottedPage.recordSize(tuple(n, "code" + n, n)))) {
+            Tuple t = tuple(n, "code" + n, n);
+            page.insertTuple(t);
+            assertEquals(n, t.getRecordId().getTupleNumber());
+            n++;
+        }
+        // a HeapPage holds 29 of these tuples
+        assertTrue(n > 150);
+        try {
+            page.insertTuple(tuple(n, "code" + n, n));
+            fail("page should be full");
+        } catch (DbException expected) {
+        }
+
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < n; i++) {
+            assertTrue(TestUtil.compareTuples(tuple(i, "code" + i, i), it.next()));
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Deleting a record gives all of its bytes back, the records in front of
+     * it keep their slots, and the freed slot is used again.
+     */
+    @Test public void deleteCompacts() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        Tuple a = tuple(1, "a", 1);
+        Tuple b = tuple(2, "a much longer string", 2);
+        Tuple c = tuple(3, "c", 3);
+        page.insertTuple(a);
+        page.insertTuple(b);
+        page.insertTuple(c);
+        int free = page.getFreeSpace();
+
+        page.deleteTuple(b);
+        assertEquals(free + SlottedPage.recordSize(b), page.getFreeSpace());
+        assertFalse(page.isSlotUsed(1));
+        assertTrue(TestUtil.compareTuples(a, page.getTuple(0)));
+        assertTrue(TestUtil.compareTuples(c, page.getTuple(2)));
+
+        Tuple d = tuple(4, "d", 4);
+        page.insertTuple(d);
+        assertEquals(1, d.getRecordId().getTupleNumber());
+        assertTrue(TestUtil.compareTuples(d, page.getTuple(1)));
+
+        page.deleteTuple(a);
+        page.deleteTuple(c);
+        page.deleteTuple(d);
+        assertEquals(0, page.getNumSlots());
+        assertArrayEquals(SlottedPage.createEmptyPageData(), page.getPageData());
+    }
+
+    /**
+     * On a full page with every other record deleted, no single hole fits a
+     * longer record, but compaction left the freed bytes in one gap: longer
+     * records go there, into the lowest free slots, and the records that
+     * were moved keep their slots.
+     */
+    @Test public void refillAfterScatteredDeletes() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        List<Tuple> inserted = new ArrayList<>();
+        for (int n = 0; page.fits(SlottedPage.recordSize(tuple(n, "s" + n, n))); n++) {
+            Tuple t = tuple(n, "s" + n, n);
+            page.insertTuple(t);
+            inserted.add(t);
+        }
+        int slots = page.getNumSlots();
+        List<Integer> freed = new ArrayList<>();
+        int freedBytes = page.getFreeSpace();
+        // 最后一个槽留着，槽目录不会变短
+        for (int i = 0; i < slots - 1; i += 2) {
+            page.deleteTuple(inserted.get(i));
+            freed.add(i);
+            freedBytes += SlottedPage.recordSize(inserted.get(i));
+        }
+        assertEquals(slots, page.getNumSlots());
+        assertEquals(freedBytes, page.getFreeSpace());
+
+        String longer = "longer than any record that was deleted";
+        int size = SlottedPage.recordSize(tuple(0, longer, 0));
+        assertTrue(size > 2 * SlottedPage.recordSize(inserted.get(slots - 1)));
+        Iterator<Integer> slot = freed.iterator();
+        int refilled = 0;
+        while (page.fits(size)) {
+            Tuple t = tuple(-refilled, longer, -refilled);
+            page.insertTuple(t);
+            assertEquals((int) slot.next(), t.getRecordId().getTupleNumber());
+            refilled++;
+        }
+        assertEquals(freedBytes / size, refilled);
+        assertEquals(slots, page.getNumSlots());
+
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        for (int i = 1; i < slots; i += 2) {
+            assertTrue(TestUtil.compareTuples(inserted.get(i), copy.getTuple(i)));
+        }
+        for (int i = 0; i < refilled; i++) {
+            assertTrue(TestUtil.compareTuples(tuple(-i, longer, -i), copy.getTuple(freed.get(i))));
+        }
+    }
+
+    /**
+     * The pageLSN is kept in the header of the page, and stays when records
+     * come and go.
+     */
+    @Test public void pageLsn() throws Exception {
+        SlottedPage page = new SlottedPage(pid, SlottedPage.createEmptyPageData());
+        assertEquals(0, page.getLSN());
+        page.setLSN(0x0102030405060708L);
+        Tuple a = tuple(1, "a", 1);
+        page.insertTuple(a);
+        page.insertTuple(tuple(2, "b", 2));
+        page.deleteTuple(a);
+
+        SlottedPage copy = new SlottedPage(pid, page.getPageData());
+        assertEquals(0x0102030405060708L, copy.getLSN());
+        assertFalse(copy.isSlotUsed(0));
+        assertTrue(TestUtil.compareTuples(tuple(2, "b", 2), copy.getTuple(1)));
+    }
+
+    /**
+     * A SlottedFile stores tuples through the BufferPool and scans them back.
+     */
+    @Test public void fileInsertAndScan() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        SlottedFile file = new SlottedFile(f, TD);
+        Database.getCatalog().addTable(file, SystemTestUtil.getUUID());
+
+        TransactionId tid = new TransactionId();
+        int n = 500;
+        for (int i = 0; i < n; i++) {
+            Database.getBufferPool().insertTuple(tid, file.getId(), tuple(i, "name" + i, i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(file.numPages() < 6);
+
+        tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int i = ((IntField) t.getField(0)).getValue();
+            assertTrue(TestUtil.compareTuples(tuple(i, "name" + i, i), t));
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(n, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedPageTest.class);
+    }
+}
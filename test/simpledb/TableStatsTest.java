@@ -40,7 +40,7 @@ public class TableStatsTest extends SimpleDbTestBase {
 	private double[] getRandomTableScanCosts(int[] pageNums, int[] ioCosts) throws IOException {
 		double[] ret = new double[ioCosts.length];
 		for(int i = 0; i < ioCosts.length; ++i) {
-			HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 992*pageNums[i], 32, null, tuples);
+			HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 991*pageNums[i], 32, null, tuples);
 			Assert.assertEquals(pageNums[i], hf.numPages());			
 			String tableName = SystemTestUtil.getUUID();
 			Database.getCatalog().addTable(hf, tableName);
@@ -1,8 +1,12 @@
 package simpledb;
 
+import org.junit.Before;
+
 import simpledb.common.*;
 import simpledb.execution.OpIterator;
 import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -369,6 +373,31 @@ public class TestUtil {
         }
     }
 
+    /**
+     * JUnit fixture for the unit tests of a page format. Registers a stub
+     * table with schema {@link #TD} under the table id of {@link #pid}, so
+     * pages can be built from bytes without a file behind them.
+     */
+    public static abstract class PageFormatTest extends SimpleDbTestBase {
+        /** An int, a string and an int, so pages hold fixed and variable width fields */
+        public static final TupleDesc TD = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE });
+
+        protected final HeapPageId pid = new HeapPageId(-1, -1);
+
+        @Before public void addTable() {
+            Database.getCatalog().addTable(new SkeletonFile(pid.getTableId(), TD), SystemTestUtil.getUUID());
+        }
+
+        /** @return a tuple of schema {@link #TD} */
+        public static Tuple tuple(int a, String s, int b) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(a));
+            t.setField(1, new StringField(s, Type.STRING_LEN));
+            t.setField(2, new IntField(b));
+            return t;
+        }
+    }
+
     /** JUnit fixture that creates a heap file and cleans it up afterward. */
     public static abstract class CreateHeapFile {
         protected CreateHeapFile() {
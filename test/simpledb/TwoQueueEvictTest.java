@@ -0,0 +1,84 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.evict.TwoQueueEvict;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class TwoQueueEvictTest {
+
+    private static PageId page(int n) {
+        return new HeapPageId(1, n);
+    }
+
+    /**
+     * A page that comes back soon after it was evicted from A1in is hot, and
+     * should outlive pages that were only seen once.
+     */
+    @Test public void pageSeenAgainIsKept() {
+        TwoQueueEvict twoQueue = new TwoQueueEvict(4);
+        twoQueue.modifyData(page(0));
+        assertEquals(page(0), twoQueue.getEvictPageId());
+
+        // page 0还记在A1out里，再次访问进入Am
+        twoQueue.modifyData(page(0));
+        for (int i = 1; i <= 3; i++) {
+            twoQueue.modifyData(page(i));
+        }
+        // A1in超过1/4的frame时先淘汰A1in
+        assertEquals(page(1), twoQueue.getEvictPageId());
+        assertEquals(page(2), twoQueue.getEvictPageId());
+        assertEquals(page(0), twoQueue.getEvictPageId());
+        assertEquals(page(3), twoQueue.getEvictPageId());
+        assertNull(twoQueue.getEvictPageId());
+    }
+
+    /**
+     * Pages read with the use-once hint go before any page read normally, and
+     * are not promoted when they come back.
+     */
+    @Test public void useOncePagesGoFirst() {
+        TwoQueueEvict twoQueue = new TwoQueueEvict(8);
+        twoQueue.modifyData(page(0));
+        for (int i = 1; i <= 3; i++) {
+            twoQueue.modifyDataOnce(page(i));
+        }
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(page(i), twoQueue.getEvictPageId());
+        }
+
+        twoQueue.modifyData(page(1));
+        twoQueue.modifyData(page(4));
+        assertEquals(page(0), twoQueue.getEvictPageId());
+        assertEquals(page(1), twoQueue.getEvictPageId());
+        assertEquals(page(4), twoQueue.getEvictPageId());
+    }
+
+    /**
+     * A page read ahead stays in the use-once FIFO when the scan reaches it,
+     * and moves on to A1in only when it is hit again.
+     */
+    @Test public void prefetchedPageIsUsedOnce() {
+        TwoQueueEvict twoQueue = new TwoQueueEvict(8);
+        twoQueue.modifyData(page(0));
+        twoQueue.modifyDataPrefetched(page(1));
+        twoQueue.modifyDataPrefetched(page(2));
+        twoQueue.modifyDataOnce(page(1));
+        twoQueue.modifyDataOnce(page(2));
+        twoQueue.modifyDataOnce(page(2));
+
+        assertEquals(page(1), twoQueue.getEvictPageId());
+        assertEquals(page(0), twoQueue.getEvictPageId());
+        assertEquals(page(2), twoQueue.getEvictPageId());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TwoQueueEvictTest.class);
+    }
+}
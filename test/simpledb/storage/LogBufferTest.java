@@ -0,0 +1,127 @@
+package simpledb.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogBufferTest {
+
+    private File file;
+    private RandomAccessFile raf;
+    private LogBuffer buffer;
+
+    @Before public void setUp() throws IOException {
+        file = File.createTempFile("logbuffer", ".log");
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        buffer = new LogBuffer();
+        buffer.reset(raf.getChannel(), 0, 0);
+    }
+
+    @After public void tearDown() throws IOException {
+        buffer.close();
+        raf.close();
+    }
+
+    private static byte[] record(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed + i);
+        }
+        return bytes;
+    }
+
+    /** Append records, force them and check that the file holds exactly them */
+    private void appendAndCheck(byte[]... records) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (byte[] r : records) {
+            buffer.append(r);
+            expected.write(r);
+        }
+        buffer.force(expected.size(), buffer.epoch());
+        assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * A record that starts in one buffer and ends in the next is written
+     * in one piece at the right place.
+     */
+    @Test(timeout = 10000) public void recordSpanningBuffers() throws IOException {
+        appendAndCheck(record(100, 1), record(LogBuffer.BUFFER_SIZE, 2), record(10, 3));
+    }
+
+    /**
+     * Appending more than the ring holds waits for the writer to give
+     * buffers back, also within a single record.
+     */
+    @Test(timeout = 10000) public void fullRing() throws IOException {
+        byte[][] records = new byte[4 * LogBuffer.NUM_BUFFERS + 1][];
+        for (int i = 0; i < records.length - 1; i++) {
+            records[i] = record(LogBuffer.BUFFER_SIZE / 2 + 1, i);
+        }
+        records[records.length - 1] = record((LogBuffer.NUM_BUFFERS + 1) * LogBuffer.BUFFER_SIZE, 7);
+        appendAndCheck(records);
+    }
+
+    /**
+     * A force still waiting when the log is reset returns, since the log it
+     * was waiting for is gone, and forces in the new epoch work.
+     */
+    @Test(timeout = 10000) public void resetDuringPendingForce() throws Exception {
+        // 组提交等得很久，force一直在等
+        buffer.setGroupCommit(5000000, 100);
+        buffer.append(record(100, 1));
+        // 先写到文件里，writer只剩下force没做
+        buffer.flush(100);
+        long epoch = buffer.epoch();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                buffer.force(100, epoch);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+
+        File nextFile = File.createTempFile("logbuffer", ".log");
+        nextFile.deleteOnExit();
+        RandomAccessFile next = new RandomAccessFile(nextFile, "rw");
+        try {
+            buffer.setGroupCommit(0, 1);
+            buffer.reset(next.getChannel(), 0, 0);
+            waiter.join(2000);
+            assertFalse(waiter.isAlive());
+            assertNull(failure.get());
+            assertNotEquals(epoch, buffer.epoch());
+
+            byte[] r = record(50, 2);
+            buffer.append(r);
+            buffer.force(r.length, buffer.epoch());
+            assertArrayEquals(r, Files.readAllBytes(nextFile.toPath()));
+        } finally {
+            buffer.close();
+            next.close();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
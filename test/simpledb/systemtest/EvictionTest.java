@@ -30,7 +30,7 @@ public class EvictionTest extends SimpleDbTestBase {
 
     @Test public void testHeapFileScanWithManyPages() throws IOException, DbException, TransactionAbortedException {
         System.out.println("EvictionTest creating large table");
-        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1024*504, null, null);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1024*503, null, null);
         System.out.println("EvictionTest scanning large table");
         Database.resetBufferPool(BUFFER_PAGES);
         long beginMem = SystemTestUtil.getMemoryFootprint();
@@ -107,6 +107,19 @@ public class LogTest extends SimpleDbTestBase {
         abort(t);
     }
 
+    // bulk load rows with the specified first column values
+    void bulkLoad(HeapFile hf, Transaction t, int... values)
+            throws DbException, IOException, TransactionAbortedException {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int v : values) {
+            Tuple value = new Tuple(Utility.getTupleDesc(2));
+            value.setField(0, new IntField(v));
+            value.setField(1, new IntField(0));
+            tuples.add(value);
+        }
+        assertEquals(values.length, hf.bulkLoad(t.getId(), tuples.iterator()));
+    }
+
     // simulate crash
     // restart Database
     // run log recovery
@@ -118,6 +131,27 @@ public class LogTest extends SimpleDbTestBase {
         Database.getLogFile().recover();
     }
 
+    // start LSNs of the log segment files, in order
+    List<Long> segments() {
+        List<Long> starts = new ArrayList<>();
+        for (File f : Objects.requireNonNull(new File(".").listFiles())) {
+            if (f.getName().matches("log\\.[0-9]+")) {
+                starts.add(Long.parseLong(f.getName().substring(4)));
+            }
+        }
+        Collections.sort(starts);
+        return starts;
+    }
+
+    // bytes in the log segment files
+    long logSize() {
+        long size = 0;
+        for (long start : segments()) {
+            size += new File("log." + start).length();
+        }
+        return size;
+    }
+
     // create an initial database with two empty tables
     // does *not* initiate log file recovery
     void setup()
@@ -436,6 +470,331 @@ public class LogTest extends SimpleDbTestBase {
     }
 
 
+    @Test public void TestBulkLoadAbort()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // bulk load and abort: the loaded rows should be gone
+        Transaction t = new Transaction();
+        t.start();
+        bulkLoad(hf1, t, 3, 4);
+        look(hf1, t, 3, true);
+        abort(t);
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestBulkLoadCommitOpenCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // T1 bulk loads and commits, T2 bulk loads but does not commit
+        // crash: only T1's rows should be there
+        Transaction t1 = new Transaction();
+        t1.start();
+        bulkLoad(hf1, t1, 5, 6);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        bulkLoad(hf2, t2, 7, 8);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 5, true);
+        look(hf1, t, 6, true);
+        look(hf2, t, 7, false);
+        look(hf2, t, 8, false);
+        t.commit();
+    }
+
+    @Test public void TestDeltaSteal()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // an update of one tuple logs far less than a page
+        long logLength = logSize();
+        doInsert(hf1, 2, -1);
+        assertTrue(logSize() - logLength < BufferPool.getPageSize() / 10);
+
+        // *** Test:
+        // T1 inserts, its page is flushed, then it deletes the row again
+        // and commits; after a crash the row must stay deleted
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        SeqScan scan = new SeqScan(t1.getId(), hf1.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tu = scan.next();
+            if (((IntField) tu.getField(0)).getValue() == 3) {
+                Database.getBufferPool().deleteTuple(t1.getId(), tu);
+            }
+        }
+        scan.close();
+        t1.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestCleanerCommitCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+        Database.getLogFile().logCheckpoint();
+
+        // *** Test:
+        // with a page cleaner, T1's page is only logged when it commits;
+        // T2 does not commit. crash: recovery starts at the checkpoint,
+        // redoes T1's page and leaves out T2's row
+        Database.getBufferPool().startPageCleaner(0, 1, 60000);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 2);
+        t1.commit();
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 3);
+        Database.getBufferPool().stopPageCleaner();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpointCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // T1 commits with a page cleaner, so its page is not written;
+        // the checkpoint does not write it either, but lists it as dirty.
+        // crash: recovery starts at the checkpoint and still redoes T1
+        Database.getBufferPool().startPageCleaner(0, 1, 60000);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 2);
+        t1.commit();
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        int emptySlots = ((HeapPage) hf1.readPage(pid)).getNumEmptySlots();
+        Database.getLogFile().logCheckpoint();
+        assertEquals(emptySlots, ((HeapPage) hf1.readPage(pid)).getNumEmptySlots());
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf2, t2, 3);
+        t2.commit();
+        Database.getBufferPool().stopPageCleaner();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf2, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommit()
+            throws Exception {
+        setup();
+        doInsert(hf1, 1, -1);
+
+        // *** Test:
+        // four transactions commit at the same time and share one force
+        Database.getLogFile().setGroupCommit(10000000, 4);
+        long forces = Database.getLogFile().getForceCount();
+        List<Thread> threads = new ArrayList<>();
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 4; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            threads.add(new Thread(() -> {
+                try {
+                    t.commit();
+                } catch (IOException e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.isEmpty());
+        assertEquals(forces + 1, Database.getLogFile().getForceCount());
+        Database.getLogFile().setGroupCommit(0, 1);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        t.commit();
+    }
+
+    @Test public void TestCrashDuringRollback()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, -1);
+        doInsert(hf2, 2, -1);
+
+        // *** Test:
+        // T1 updates a page of each table and both pages are written.
+        // Its rollback undoes the update of hf2 and writes a CLR for it,
+        // then crashes before it gets to hf1, whose file cannot be read.
+        // Recovery redoes the CLR and only undoes the update of hf1;
+        // crashing and recovering again changes nothing
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        insertRow(hf2, t1, 4);
+        Database.getBufferPool().flushAllPages();
+
+        // a directory in place of the file makes reading hf1 fail
+        File moved = new File(file1.getPath() + ".moved");
+        hf1.close();
+        assertTrue(file1.renameTo(moved));
+        assertTrue(file1.mkdir());
+        try {
+            Database.getLogFile().rollback(t1.getId());
+            fail("rollback should not be able to read " + file1);
+        } catch (RuntimeException expected) {
+        }
+        // the CLR made it to disk before the crash
+        Database.getLogFile().force();
+        assertTrue(file1.delete());
+        assertTrue(moved.renameTo(file1));
+
+        for (int i = 0; i < 2; i++) {
+            crash();
+
+            Transaction t = new Transaction();
+            t.start();
+            look(hf1, t, 1, true);
+            look(hf1, t, 3, false);
+            look(hf2, t, 2, true);
+            look(hf2, t, 4, false);
+            t.commit();
+        }
+    }
+
+    @Test public void TestRedoSkipsUpToDatePage()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // T1 commits with a page cleaner, and the checkpoint lists its page
+        // as dirty. The page is written afterwards, with the LSN of T1's
+        // update as its pageLSN. A change made to the page on disk behind
+        // the log's back survives recovery, since the page already holds
+        // everything the log would redo on it
+        Database.getBufferPool().startPageCleaner(0, 1, 60000);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 5);
+        t1.commit();
+        Database.getLogFile().logCheckpoint();
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().stopPageCleaner();
+
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        HeapPage page = new HeapPage(pid, hf1.readPage(pid).getPageData());
+        assertTrue(page.getLSN() > 0);
+        Tuple changed = new Tuple(Utility.getTupleDesc(2));
+        // T1的更新改过的字节里就有第一列，重做的话99会被改回5
+        changed.setField(0, new IntField(99));
+        changed.setField(1, new IntField(0));
+        page.deleteTuple(page.getTuple(0));
+        page.insertTuple(changed);
+        hf1.writePage(page);
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 99, true);
+        look(hf1, t, 5, false);
+        t.commit();
+    }
+
+    @Test public void TestTruncateDropsSegments()
+            throws IOException, DbException, TransactionAbortedException {
+        LogFile.setSegmentSize(1024);
+        try {
+            setup();
+            for (int i = 1; i <= 60; i++) {
+                doInsert(hf1, i, -1);
+            }
+            List<Long> before = segments();
+            assertTrue(before.size() > 2);
+
+            // *** Test:
+            // T1 is still running at the checkpoint, so the log is kept from
+            // its first record on; the older segments are deleted, and the
+            // records that are left keep their LSNs
+            Transaction t1 = new Transaction();
+            t1.start();
+            insertRow(hf2, t1, 100);
+            Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+            Database.getLogFile().logCheckpoint();
+            List<Long> after = segments();
+            assertTrue(after.size() < before.size());
+            assertTrue(after.get(0) > before.get(0));
+            assertTrue(after.get(after.size() - 1) >= before.get(before.size() - 1));
+
+            // crash: recovery reads the log from the checkpoint on and
+            // rolls T1 back, which needs its records before the checkpoint
+            crash();
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 1; i <= 60; i++) {
+                look(hf1, t, i, true);
+            }
+            look(hf2, t, 100, false);
+            t.commit();
+            assertTrue(segments().get(0) >= after.get(0));
+        } finally {
+            LogFile.resetSegmentSize();
+        }
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);